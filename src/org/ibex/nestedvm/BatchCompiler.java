@@ -0,0 +1,246 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package org.ibex.nestedvm;
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+
+import org.ibex.nestedvm.util.*;
+
+/** Compiles every MIPS binary under a directory into one jar on as many threads as there are processors.
+    Identical binaries (like hard links to busybox) are compiled once. The jar's index (nestedvm/precompiled.idx)
+    lists the SHA-1 of each binary with its class so UnixRuntime.exec() can run it without compiling it.
+    @see UnixRuntime.GlobalState#addPrecompiled(File) */
+public class BatchCompiler {
+    private static final String CLASS_PREFIX = "nestedvm.precompiled.C";
+
+    private final File root;
+    private final String options;
+    private final JarOutputStream jar;
+    private final PrintStream warn;
+
+    private final Hashtable paths = new Hashtable(); // the paths of the binaries under root by hash
+    private final Vector hashes = new Vector(); // the same in the order they were found
+    private int next; // the next hash to be compiled
+    private int failed;
+
+    /** Creates a compiler for the binaries under <i>root</i> that writes the classes to <i>jar</i>.
+        <i>options</i> are passed to each ClassFileCompiler after "unixruntime,textshards=0" */
+    public BatchCompiler(File root, String options, OutputStream jar, PrintStream warn) throws IOException {
+        this.root = root;
+        this.options = options;
+        this.jar = new JarOutputStream(jar);
+        this.warn = warn;
+    }
+
+    /** Finds and compiles the binaries on <i>threads</i> threads and finishes the jar. Returns the number of binaries
+        that couldn't be compiled, they are left out of the index. */
+    public int go(int threads) throws IOException {
+        scan(root,"",new Hashtable());
+
+        // compile() drops the binaries it can't compile, anything else (like failing to write the jar) stops us
+        final Throwable[] error = new Throwable[1];
+        Runnable worker = new Runnable() {
+            public void run() {
+                for(;;) {
+                    String hash;
+                    synchronized(BatchCompiler.this) {
+                        if(error[0] != null || next == hashes.size()) return;
+                        hash = (String) hashes.elementAt(next++);
+                    }
+                    try {
+                        compile(hash);
+                    } catch(Throwable t) {
+                        synchronized(BatchCompiler.this) { if(error[0] == null) error[0] = t; }
+                    }
+                }
+            }
+        };
+        Thread[] t = new Thread[Math.max(1,Math.min(threads,hashes.size()))-1];
+        for(int i=0;i<t.length;i++) (t[i] = new Thread(worker)).start();
+        worker.run();
+        for(int i=0;i<t.length;i++) {
+            try {
+                t[i].join();
+            } catch(InterruptedException e) {
+                throw new IOException("Interrupted while compiling");
+            }
+        }
+        if(error[0] != null) {
+            try { jar.close(); } catch(IOException e) { /* report the first error */ }
+            if(error[0] instanceof IOException) throw (IOException) error[0];
+            if(error[0] instanceof RuntimeException) throw (RuntimeException) error[0];
+            if(error[0] instanceof Error) throw (Error) error[0];
+            throw new IOException(error[0].toString());
+        }
+
+        StringBuffer index = new StringBuffer("# nestedvm precompiled binaries: sha1 class path...\n");
+        for(int i=0;i<hashes.size();i++) {
+            String hash = (String) hashes.elementAt(i);
+            Vector v = (Vector) paths.get(hash);
+            if(v == null) continue; // didn't compile
+            index.append(hash).append(' ').append(CLASS_PREFIX).append(hash);
+            for(int j=0;j<v.size();j++) index.append(' ').append(v.elementAt(j));
+            index.append('\n');
+        }
+        putEntry(UnixRuntime.GlobalState.PRECOMPILED_INDEX,index.toString().getBytes("UTF-8"));
+        jar.close();
+        return failed;
+    }
+
+    // Records every ELF binary under dir (path is dir relative to root). Directories are only visited once so
+    // symlink loops don't matter.
+    private void scan(File dir, String path, Hashtable seen) throws IOException {
+        if(seen.put(dir.getCanonicalPath(),Boolean.TRUE) != null) return;
+        String[] list = dir.list();
+        if(list == null) return;
+        Arrays.sort(list);
+        for(int i=0;i<list.length;i++) {
+            File f = new File(dir,list[i]);
+            String p = path + "/" + list[i];
+            if(f.isDirectory()) {
+                scan(f,p,seen);
+                continue;
+            }
+            if(!isELF(f)) continue;
+            Seekable s = new Seekable.File(f,false,false);
+            String hash;
+            try {
+                hash = UnixRuntime.GlobalState.binaryHash(s);
+            } finally {
+                s.close();
+            }
+            Vector v = (Vector) paths.get(hash);
+            if(v == null) {
+                paths.put(hash,v = new Vector());
+                hashes.addElement(hash);
+            }
+            v.addElement(p);
+        }
+    }
+
+    private static boolean isELF(File f) {
+        byte[] buf = new byte[4];
+        try {
+            InputStream is = new FileInputStream(f);
+            try {
+                if(is.read(buf) != 4) return false;
+            } finally {
+                is.close();
+            }
+        } catch(IOException e) {
+            return false;
+        }
+        return buf[0] == '\177' && buf[1] == 'E' && buf[2] == 'L' && buf[3] == 'F';
+    }
+
+    // Compiles the first binary with this hash into the jar, binaries that can't be compiled are dropped from paths
+    private void compile(String hash) throws IOException {
+        String path = (String) ((Vector) paths.get(hash)).elementAt(0);
+        String className = CLASS_PREFIX + hash;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ClassFileCompiler c;
+        try {
+            try {
+                c = compile(path,className,bos,null);
+            } catch(Compiler.Exn e) {
+                if(e.getMessage() == null || e.getMessage().indexOf("constant pool full") == -1) throw e;
+                bos.reset();
+                c = compile(path,className,bos,"lessconstants");
+            }
+        } catch(Throwable t) {
+            // not a MIPS binary, unreadable, or a bug in the compiler, either way it doesn't go in the jar
+            fail(hash,path,t);
+            return;
+        }
+        Hashtable helpers;
+        try {
+            helpers = c.getHelperClasses();
+        } catch(Throwable t) {
+            fail(hash,path,t);
+            return;
+        }
+        Hashtable resources = c.getResources();
+        synchronized(jar) {
+            putEntry(className.replace('.','/') + ".class",bos.toByteArray());
+            for(Enumeration e = helpers.keys();e.hasMoreElements();) {
+                String name = (String) e.nextElement();
+                putEntry(name.replace('.','/') + ".class",(byte[]) helpers.get(name));
+            }
+            for(Enumeration e = resources.keys();e.hasMoreElements();) {
+                String name = (String) e.nextElement();
+                putEntry(name,(byte[]) resources.get(name));
+            }
+        }
+    }
+
+    private ClassFileCompiler compile(String path, String className, OutputStream os, String moreOptions) throws IOException, Compiler.Exn {
+        Seekable s = new Seekable.File(new File(root,path.substring(1)),false,false);
+        try {
+            ClassFileCompiler c = new ClassFileCompiler(s,className,os);
+            c.setWarnWriter(warn);
+            c.parseOptions("unixruntime,textshards=0");
+            c.setSource(path);
+            if(options != null) c.parseOptions(options);
+            if(moreOptions != null) c.parseOptions(moreOptions);
+            c.go();
+            return c;
+        } finally {
+            s.close();
+        }
+    }
+
+    private void fail(String hash, String path, Throwable t) {
+        boolean expected = t instanceof Compiler.Exn || t instanceof IOException;
+        warn.println("Couldn't compile " + path + ": " + (expected ? t.getMessage() : t.toString()));
+        synchronized(this) {
+            paths.remove(hash);
+            failed++;
+        }
+    }
+
+    private void putEntry(String name, byte[] b) throws IOException {
+        synchronized(jar) {
+            jar.putNextEntry(new JarEntry(name));
+            jar.write(b);
+            jar.closeEntry();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String o = null;
+        int threads = java.lang.Runtime.getRuntime().availableProcessors();
+        String dir = null;
+        String jarFile = null;
+        for(int arg=0;arg<args.length;arg++) {
+            if(args[arg].equals("-o")) {
+                if(++arg == args.length) usage();
+                o = o == null ? args[arg] : o + "," + args[arg];
+            } else if(args[arg].equals("-j")) {
+                if(++arg == args.length) usage();
+                threads = Integer.parseInt(args[arg]);
+            } else if(dir == null) {
+                dir = args[arg];
+            } else if(jarFile == null) {
+                jarFile = args[arg];
+            } else {
+                usage();
+            }
+        }
+        if(dir == null || jarFile == null || threads < 1) usage();
+
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(jarFile));
+        int failed = new BatchCompiler(new File(dir),o,os,System.err).go(threads);
+        if(failed != 0) System.err.println(failed + " binaries couldn't be compiled");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java org.ibex.nestedvm.BatchCompiler [-o options] [-j threads] directory jarfile");
+        System.err.println("Compiles every MIPS binary under directory into jarfile (run Compiler without arguments for the options)");
+        System.exit(1);
+    }
+}
@@ -5,6 +5,7 @@
 package org.ibex.nestedvm;
 
 import java.io.*;
+import java.util.*;
 
 import org.ibex.nestedvm.util.*;
 import org.ibex.classgen.*;
@@ -12,13 +13,6 @@ import org.ibex.classgen.*;
 // FEATURE: Eliminate unnecessary use of SWAP
 // FEATURE: Put regs in low (<=3) local vars, small classfile size
 
-/* FEATURE: Span large binaries across several classfiles
- * We should be able to do this with no performance penalty
- * Every method in the inner classes is static and takes the main class as an arg
- * This makes them look just like methods in the main class because arg1 gets loaded into
- * local register 0
- */
-
 /* FEATURE: smarter with local regs
  * Be even smarter with the use of local registers. We need to only load fields into
  * local regs when they are actually used and only write to fields if the regs could have
@@ -36,7 +30,7 @@ import org.ibex.classgen.*;
  */
 
 
-public class ClassFileCompiler extends Compiler implements CGConst  {
+public class ClassFileCompiler extends Compiler implements CGConst, Cloneable  {
     private static final boolean OPTIMIZE_CP = true;
     
     /** The stream to write the compiled output to */
@@ -45,10 +39,32 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
     private PrintStream warn = System.err;
 
     private final Type.Class me;
+    private static final Type.Class BYTE_BUFFER = Type.Class.instance("java.nio.ByteBuffer");
     
     private ClassFile cg;
     private MethodGen clinit, init;
     
+    /* Large binaries can be spanned across several classfiles (see textShards). Every method in the helper
+     * classes is static and takes the main class as an arg. This makes them look just like methods in the main
+     * class because arg1 gets loaded into local register 0. Protected Runtime members are reached through static
+     * bridge$ methods in the main class.
+     */
+    private int shards;
+    private Type.Class shardClass; // the class the methods being generated go in (null for the main class)
+    private Type.Class[] shardTypes;
+    private ClassFile[] shardFiles;
+    private int[] shardStarts; // the text index each shard starts at, shardStarts[shards] is the end of the text
+    private Hashtable helperClasses = new Hashtable();
+    private int[] lazyTextInsns; // the text, kept until the helper classes are asked for with lazyText
+    private int lazyShardsLeft; // the number of helper classes lazyText hasn't generated yet
+    
+    // The pages of the data segments with dataResource (by page number) and which of them are writable. These are
+    // written to a resource next to the class, see dataResourceBytes().
+    private Hashtable dataPages, writableDataPages;
+    private Hashtable resources = new Hashtable();
+    private static final int SHARD_INSNS = 64*1024; // the text is split every this many instructions for textShards=0
+    private static final int LAZY_SHARD_INSNS = 4*1024; // ... and every this many with lazyText
+    
     public ClassFileCompiler(String path, String className, OutputStream os) throws IOException { this(new Seekable.File(path),className,os); }
     public ClassFileCompiler(Seekable binary, String className, OutputStream os) throws IOException {
         this(binary,className);
@@ -66,6 +82,52 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
     }
     
     public void setWarnWriter(PrintStream warn) { this.warn = warn; }
+    
+    /** Returns the classes other than the main one generated when the text was sharded as a Hashtable mapping
+        class names to class files. These are only kept here when the main class is written to an OutputStream.
+        With lazyText any that weren't asked for yet are generated first. */
+    public Hashtable getHelperClasses() throws Exn {
+        for(int k=0;lazyTextInsns != null && k<shards;k++) getHelperClass(fullClassName + "$Text" + k);
+        return helperClasses;
+    }
+    
+    /** Returns the class file of the helper class <i>name</i>, generating it first if lazyText put that off.
+        Returns null if there's no such class. */
+    public synchronized byte[] getHelperClass(String name) throws Exn {
+        byte[] b = (byte[]) helperClasses.get(name);
+        if(b != null || lazyTextInsns == null) return b;
+        for(int k=0;k<shards;k++) {
+            if(!name.equals(fullClassName + "$Text" + k)) continue;
+            try {
+                shardCompiler(k).emitShard(lazyTextInsns,shardStarts[k],shardStarts[k+1]);
+            } catch(Exn e) {
+                if(lessConstants || e.getMessage() == null || e.getMessage().indexOf("constant pool full") == -1) throw e;
+                ClassFileCompiler c = shardCompiler(k);
+                c.lessConstants = true;
+                c.emitShard(lazyTextInsns,shardStarts[k],shardStarts[k+1]);
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try {
+                shardFiles[k].dump(bos);
+            } catch(IOException e) {
+                throw new Error("should never happen: " + e);
+            }
+            shardFiles[k] = null;
+            b = bos.toByteArray();
+            helperClasses.put(name,b);
+            if(--lazyShardsLeft == 0) lazyTextInsns = null;
+            return b;
+        }
+        return null;
+    }
+    
+    /** Returns true while lazyText hasn't generated every helper class yet (the compiler is needed until then) */
+    public synchronized boolean helperClassesPending() { return lazyTextInsns != null; }
+    
+    /** Returns the resources generated with the class (the data segments with dataResource) as a Hashtable mapping
+        resource names (like "pkg/Class.data") to their contents. These are only kept here when the main class is
+        written to an OutputStream. */
+    public Hashtable getResources() { return resources; }
         
     protected void _go() throws Exn, IOException {
         try {
@@ -84,13 +146,19 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         cg = new ClassFile(me,superClass,PUBLIC|FINAL|SUPER);
         if(source != null) cg.setSourceFile(source);
         
+        int shardInsns = lazyText ? LAZY_SHARD_INSNS : SHARD_INSNS;
+        shards = textShards != 0 ? textShards : 1 + elf.sectionWithName(".text").size/4/shardInsns;
+        // the helper classes need to get at these
+        int fieldAccess = shards > 1 ? 0 : PRIVATE;
+        
         // Fields
-        cg.addField("pc",Type.INT,PRIVATE);
-        cg.addField("hi",Type.INT,PRIVATE);
-        cg.addField("lo",Type.INT,PRIVATE);
-        cg.addField("fcsr",Type.INT,PRIVATE);
-        for(int i=1;i<32;i++) cg.addField("r" + i,Type.INT,PRIVATE);
-        for(int i=0;i<32;i++) cg.addField("f" + i,singleFloat ? Type.FLOAT : Type.INT,PRIVATE);
+        cg.addField("pc",Type.INT,fieldAccess);
+        cg.addField("hi",Type.INT,fieldAccess);
+        cg.addField("lo",Type.INT,fieldAccess);
+        cg.addField("fcsr",Type.INT,fieldAccess);
+        for(int i=1;i<32;i++) cg.addField("r" + i,Type.INT,fieldAccess);
+        for(int i=0;i<32;i++) cg.addField("f" + i,singleFloat ? Type.FLOAT : Type.INT,fieldAccess);
+        if(directCalls) cg.addField("jalDepth",Type.INT,fieldAccess);
 
         // <clinit>
         clinit = cg.addMethod("<clinit>",Type.VOID,Type.NO_ARGS,PRIVATE|STATIC);
@@ -132,7 +200,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         init.add(INVOKESPECIAL,superClass.method("<init>",Type.VOID,new Type[]{Type.INT,Type.INT,Type.BOOLEAN}));
         
         if(onePage) {
-            cg.addField("page",Type.INT.makeArray(),PRIVATE|FINAL);
+            cg.addField("page",Type.INT.makeArray(),fieldAccess|FINAL);
             init.add(ALOAD_0);
             init.add(DUP);
             init.add(GETFIELD,me.field("readPages",Type.INT.makeArray(2)));
@@ -146,6 +214,21 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         
         int highestAddr = 0;
         
+        // Data segments are only loaded by the first instance, later ones share its pages (see Runtime.mapImage())
+        init.add(ALOAD_0);
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.mapImage
+        init.add(INVOKEVIRTUAL,me.method("mapImage",Type.BOOLEAN,Type.NO_ARGS));
+        int skipImage = init.add(IFEQ);
+        
+        if(dataResource) {
+            dataPages = new Hashtable();
+            writableDataPages = new Hashtable();
+            init.add(ALOAD_0);
+            init.add(LDC,fullClassName.substring(fullClassName.lastIndexOf('.')+1) + ".data");
+            // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.loadDataResource
+            init.add(INVOKEVIRTUAL,me.method("loadDataResource",Type.VOID,new Type[]{Type.STRING}));
+        }
+        
         for(int i=0;i<elf.sheaders.length;i++) {
             ELF.SHeader sheader = elf.sheaders[i];
             String name = sheader.name;
@@ -165,6 +248,10 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         }
         
         // Finish init
+        init.add(ALOAD_0);
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.imageLoaded
+        init.add(INVOKEVIRTUAL,me.method("imageLoaded",Type.VOID,Type.NO_ARGS));
+        init.setArg(skipImage,init.size());
         init.add(RETURN);
         
         // Finish clinit
@@ -199,6 +286,14 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         // Trampoline
         MethodGen tramp = cg.addMethod("trampoline",Type.VOID,Type.NO_ARGS,PRIVATE);
         
+        if(directCalls) {
+            // No direct calls are in progress when we get here. jalDepth can be left over from an exception thrown
+            // out of a direct call or copied from the process a fork()ed child was cloned from.
+            tramp.add(ALOAD_0);
+            tramp.add(ICONST_0);
+            tramp.add(PUTFIELD,me.field("jalDepth",Type.INT));
+        }
+        
         int start = tramp.size();
         tramp.add(ALOAD_0);
         tramp.add(GETFIELD,me.field("state",Type.INT));
@@ -206,22 +301,39 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         tramp.add(RETURN);
         
         tramp.add(ALOAD_0);
-        tramp.add(ALOAD_0);
-        tramp.add(GETFIELD,me.field("pc",Type.INT));
-        tramp.add(LDC,methodShift);
-        tramp.add(IUSHR);
-        
-        int beg = text.addr >>> methodShift;
-        int end = ((text.addr + text.size + maxBytesPerMethod - 1) >>> methodShift);
-
-        MethodGen.Switch.Table tsi = new MethodGen.Switch.Table(beg,end-1);
-        tramp.add(TABLESWITCH,tsi);
-        for(int n=beg;n<end;n++) {
-            tsi.setTargetForVal(n,tramp.size());
-            tramp.add(INVOKESPECIAL,me.method("run_"+toHex(n<<methodShift),Type.VOID,Type.NO_ARGS));
-            tramp.add(GOTO,start);
+        if(methodStarts != null) {
+            tramp.add(GETSTATIC,me.field("methodStarts",Type.INT.makeArray()));
+            tramp.add(ALOAD_0);
+            tramp.add(GETFIELD,me.field("pc",Type.INT));
+            // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.methodIndex
+            tramp.add(INVOKESTATIC,Type.Class.instance("org.ibex.nestedvm.Runtime").method("methodIndex",Type.INT,new Type[]{Type.INT.makeArray(),Type.INT}));
+            
+            MethodGen.Switch.Table tsi = new MethodGen.Switch.Table(0,methodStarts.length-1);
+            tramp.add(TABLESWITCH,tsi);
+            for(int n=0;n<methodStarts.length;n++) {
+                tsi.setTargetForVal(n,tramp.size());
+                invokeRun(tramp,methodOwner[n]);
+                tramp.add(GOTO,start);
+            }
+            tsi.setDefaultTarget(tramp.size());
+        } else {
+            tramp.add(ALOAD_0);
+            tramp.add(GETFIELD,me.field("pc",Type.INT));
+            tramp.add(LDC,methodShift);
+            tramp.add(IUSHR);
+            
+            int beg = text.addr >>> methodShift;
+            int end = ((text.addr + text.size + maxBytesPerMethod - 1) >>> methodShift);
+    
+            MethodGen.Switch.Table tsi = new MethodGen.Switch.Table(beg,end-1);
+            tramp.add(TABLESWITCH,tsi);
+            for(int n=beg;n<end;n++) {
+                tsi.setTargetForVal(n,tramp.size());
+                invokeRun(tramp,n<<methodShift);
+                tramp.add(GOTO,start);
+            }
+            tsi.setDefaultTarget(tramp.size());
         }
-        tsi.setDefaultTarget(tramp.size());
         
         tramp.add(POP);
         tramp.add(NEW,Type.Class.instance("org.ibex.nestedvm.Runtime$ExecutionException"));
@@ -249,6 +361,10 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         addConstReturnMethod("entryPoint",elf.header.entry);
         addConstReturnMethod("heapStart",highestAddr);
                 
+        // fastMem stores go through writeFaultCheck(), others through unsafeMemWrite()
+        if(!onePage) addConstReturnMethod("handlesWriteFaults",true);
+        if(offHeap) addConstReturnMethod("offHeap",true);
+        
         if(userInfo != null) {
             addConstReturnMethod("userInfoBase",userInfo.addr);
             addConstReturnMethod("userInfoSize",userInfo.size);
@@ -373,41 +489,136 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         main.add(INVOKESTATIC,Type.Class.instance("java.lang.System").method("exit",Type.VOID,new Type[]{Type.INT}));
         main.add(RETURN);
         
+        if(shardTypes != null) addBridges();
+        
+        String dataName = fullClassName.replace('.','/') + ".data";
         if(outDir != null) {
             if(!outDir.isDirectory()) throw new IOException("" + outDir + " isn't a directory");
             cg.dump(outDir);
+            for(int k=0;shardFiles != null && k<shardFiles.length;k++) shardFiles[k].dump(outDir);
+            if(dataPages != null) {
+                File f = new File(outDir,dataName.replace('/',File.separatorChar));
+                f.getParentFile().mkdirs();
+                OutputStream fos = new FileOutputStream(f);
+                fos.write(dataResourceBytes());
+                fos.close();
+            }
         } else {
+            if(dataPages != null) resources.put(dataName,dataResourceBytes());
             cg.dump(os);
+            for(int k=0;shardFiles != null && k<shardFiles.length;k++) {
+                if(shardFiles[k] == null) continue; // lazyText
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                shardFiles[k].dump(bos);
+                helperClasses.put(fullClassName + "$Text" + k,bos.toByteArray());
+            }
+        }
+    }
+    
+    // Invokes run_<start> (the runtime has to be on the stack)
+    private void invokeRun(MethodGen m, int start) {
+        if(shardTypes == null) {
+            m.add(INVOKESPECIAL,me.method("run_"+toHex(start),Type.VOID,Type.NO_ARGS));
+        } else {
+            // the first method can start before the text when it isn't aligned
+            int k = shards - 1;
+            while(k > 0 && shardStarts[k] > (start-textStart)/4) k--;
+            m.add(INVOKESTATIC,shardTypes[k].method("run_"+toHex(start),Type.VOID,new Type[]{me}));
         }
     }
     
+    // Gets a protected field of the runtime on the stack
+    private void getRuntimeField(String name, Type type) {
+        if(shardClass == null) mg.add(GETFIELD,me.field(name,type));
+        else mg.add(INVOKESTATIC,me.method("bridge$" + name,type,new Type[]{me}));
+    }
+    
+    // Invokes a protected method of the runtime on the stack (below its arguments)
+    private void invokeRuntime(String name, Type ret, Type[] args) {
+        if(shardClass == null) {
+            mg.add(INVOKEVIRTUAL,me.method(name,ret,args));
+        } else {
+            Type[] a = new Type[args.length+1];
+            a[0] = me;
+            System.arraycopy(args,0,a,1,args.length);
+            mg.add(INVOKESTATIC,me.method("bridge$" + name,ret,a));
+        }
+    }
+    
+    private static final Type[] INT_ARG = new Type[]{Type.INT};
+    
+    // The bridge$ methods used by the helper classes
+    private void addBridges() {
+        addBridge("state",Type.INT,null);
+        addBridge("readPages",Type.INT.makeArray(2),null);
+        addBridge("writePages",Type.INT.makeArray(2),null);
+        addBridge("readBuffers",BYTE_BUFFER.makeArray(),null);
+        addBridge("writeBuffers",BYTE_BUFFER.makeArray(),null);
+        addBridge("syscall",Type.INT,new Type[]{Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT});
+        addBridge("unsafeMemRead",Type.INT,INT_ARG);
+        addBridge("unsafeMemWrite",Type.VOID,new Type[]{Type.INT,Type.INT});
+        addBridge("writeFault",Type.INT.makeArray(),INT_ARG);
+        addBridge("writeBufferFault",BYTE_BUFFER,INT_ARG);
+        addBridge("nullPointerCheck",Type.VOID,INT_ARG);
+        addBridge("stackCheck",Type.VOID,INT_ARG);
+    }
+    
+    // A static method returning a field (args == null) or calling a method with int args
+    private void addBridge(String name, Type ret, Type[] args) {
+        Type[] a = new Type[args == null ? 1 : args.length+1];
+        a[0] = me;
+        if(args != null) System.arraycopy(args,0,a,1,args.length);
+        MethodGen m = cg.addMethod("bridge$" + name,ret,a,STATIC|FINAL);
+        m.add(ALOAD_0);
+        if(args == null) {
+            m.add(GETFIELD,me.field(name,ret));
+        } else {
+            for(int i=0;i<args.length;i++) m.add(ILOAD,i+1);
+            m.add(INVOKEVIRTUAL,me.method(name,ret,args));
+        }
+        m.add(ret == Type.VOID ? RETURN : ret == Type.INT ? IRETURN : ARETURN);
+    }
+    
     private void addConstReturnMethod(String name, int val) {
         MethodGen  m = cg.addMethod(name,Type.INT,Type.NO_ARGS,PROTECTED);
         m.add(LDC,val);
         m.add(IRETURN);
     }
+    
+    private void addConstReturnMethod(String name, boolean val) {
+        MethodGen  m = cg.addMethod(name,Type.BOOLEAN,Type.NO_ARGS,PROTECTED);
+        m.add(val ? ICONST_1 : ICONST_0);
+        m.add(IRETURN);
+    }
         
-    private static int initDataCount;
+    private int initDataCount;
     private void emitData(int addr, DataInputStream dis, int size, boolean readOnly) throws Exn,IOException {
         if((addr&3)!=0 || (size&3)!=0) throw new Exn("Data section on weird boundaries");
+        if(dataPages != null) {
+            int pageSize = 1<<pageShift;
+            byte[] buf = new byte[size];
+            dis.readFully(buf);
+            dis.close();
+            for(int i=0;i<size;) {
+                Integer page = new Integer((addr+i)>>>pageShift);
+                int off = (addr+i)&(pageSize-1);
+                int n = Math.min(pageSize-off,size-i);
+                byte[] p = (byte[]) dataPages.get(page);
+                if(p == null) dataPages.put(page,p = new byte[pageSize]);
+                System.arraycopy(buf,i,p,off,n);
+                if(!readOnly) writableDataPages.put(page,Boolean.TRUE);
+                i += n;
+            }
+            return;
+        }
         int last = addr + size;
         while(addr < last) {
             int segSize = Math.min(size,28000); // must be a multiple of 56
-            StringBuffer sb = new StringBuffer();
-            for(int i=0;i<segSize;i+=7) {
-                long l = 0;
-                for(int j=0;j<7;j++) {
-                    l <<= 8;
-                    byte b = (i+j < size) ? dis.readByte() : 1;
-                    l |= (b & 0xffL);
-                }
-                for(int j=0;j<8;j++)
-                    sb.append((char) ((l>>>(7*(7-j)))&0x7f));
-            }
+            String s = encodeData(dis,segSize,size);
             String fieldname =  "_data" + (++initDataCount);
             cg.addField(fieldname,Type.INT.makeArray(),PRIVATE|STATIC|FINAL);
             
-            clinit.add(LDC,sb.toString());
+            clinit.add(LDC,s);
             clinit.add(LDC,segSize/4);
             // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.decodeData
             clinit.add(INVOKESTATIC,Type.Class.instance("org.ibex.nestedvm.Runtime").method("decodeData",Type.INT.makeArray(),new Type[]{Type.STRING,Type.INT}));
@@ -425,6 +636,44 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         dis.close();
     }
     
+    /** The contents of the data resource read by Runtime.loadDataResource(): the page shift, the number of pages,
+        the page number and a writable flag for each page and then, starting at the next page boundary, the pages */
+    private byte[] dataResourceBytes() throws IOException {
+        int pageSize = 1<<pageShift;
+        int n = 0;
+        int[] pages = new int[dataPages.size()];
+        for(Enumeration e = dataPages.keys();e.hasMoreElements();) pages[n++] = ((Integer)e.nextElement()).intValue();
+        Arrays.sort(pages);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(pageShift);
+        dos.writeInt(n);
+        for(int i=0;i<n;i++) {
+            dos.writeInt(pages[i]);
+            dos.writeByte(writableDataPages.get(new Integer(pages[i])) != null ? 1 : 0);
+        }
+        while(dos.size()%pageSize != 0) dos.writeByte(0);
+        for(int i=0;i<n;i++) dos.write((byte[]) dataPages.get(new Integer(pages[i])));
+        dos.close();
+        return bos.toByteArray();
+    }
+    
+    /** Packs <i>segSize</i> bytes (7 per 8 chars) for Runtime.decodeData(), padding after <i>size</i> bytes */
+    private static String encodeData(DataInputStream dis, int segSize, int size) throws IOException {
+        StringBuffer sb = new StringBuffer();
+        for(int i=0;i<segSize;i+=7) {
+            long l = 0;
+            for(int j=0;j<7;j++) {
+                l <<= 8;
+                byte b = (i+j < size) ? dis.readByte() : 1;
+                l |= (b & 0xffL);
+            }
+            for(int j=0;j<8;j++)
+                sb.append((char) ((l>>>(7*(7-j)))&0x7f));
+        }
+        return sb.toString();
+    }
+    
     private void emitBSS(int addr, int size) throws Exn {
         if((addr&3)!=0) throw new Exn("BSS section on weird boundaries");
         size = (size+3)&~3;
@@ -448,28 +697,321 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
     
     private boolean jumpable(int addr) { return jumpableAddresses.get(new Integer(addr)) != null; }
     
+    // true if addr is in the method being generated (and can be branched to without the trampoline)
+    private boolean inMethod(int addr) {
+        return addr >= startOfMethod && addr < endOfMethod && (cold == null || cold[(addr-textStart)/4] == coldMethod);
+    }
+    
+    // With functionMethods or a profile the trampoline looks the run_ methods up in a table. The text is split into
+    // ranges starting at methodStarts[n] that are compiled into run_<methodOwner[n]>, a method that ends no later
+    // than methodLimit[n]. A method can own several ranges when cold code was taken out of it.
+    private int[] methodStarts, methodOwner, methodLimit;
+    
+    // Instructions that never ran according to the profile, runs of them are put in methods of their own
+    private boolean[] cold;
+    private boolean coldMethod; // the method being generated is for cold code
+    private static final int MIN_COLD_INSNS = 8;
+    
+    /** Finds the method ranges. With functionMethods every function in the symtab gets its own method and
+        functions longer than maxInsnPerFunction are split, otherwise methods start every maxInsnPerMethod
+        instructions. With functionMethods or a profile the range starts are also stored in the static methodStarts
+        field of the generated class for the trampoline, when we only split the text into helper classes the
+        methods stay where pc>>>methodShift finds them. */
+    private void findMethods(int base, int[] text) throws IOException {
+        int count = text.length;
+        boolean[] isStart = new boolean[count];
+        isStart[0] = true;
+        if(functionMethods) {
+            ELF.Symbol[] symbols = elf.getSymtab().symbols;
+            for(int i=0;i<symbols.length;i++) {
+                ELF.Symbol s = symbols[i];
+                if(s.type == ELF.Symbol.STT_FUNC && s.addr > base && s.addr < base + count*4 && (s.addr&3) == 0)
+                    isStart[(s.addr-base)/4] = true;
+            }
+            for(int i=0,last=0;i<count;i++) {
+                if(!isStart[i] && i - last >= maxInsnPerFunction) isStart[i] = true;
+                if(isStart[i]) last = i;
+            }
+        } else {
+            for(int i=0;i<count;i++) if(((base+i*4)&~methodMask) == 0) isStart[i] = true;
+        }
+        if(profile != null) findColdCode(base,text);
+        if(functionMethods || profile != null) findMethodRanges(base,text,isStart);
+        
+        if(shards > 1) {
+            // each helper class gets about the same number of instructions, split where a method starts
+            int[] starts = new int[shards+1];
+            int k = 0;
+            for(int i=0;i<count && k<shards;i++) if(isStart[i] && i >= (long)k*count/shards) starts[k++] = i;
+            shards = k;
+            if(shards > 1) {
+                shardStarts = new int[shards+1];
+                System.arraycopy(starts,0,shardStarts,0,shards);
+                shardStarts[shards] = count;
+                shardTypes = new Type.Class[shards];
+                for(k=0;k<shards;k++) shardTypes[k] = Type.Class.instance(fullClassName + "$Text" + k);
+            }
+        }
+    }
+    
+    // Fills in methodStarts, methodOwner, and methodLimit (and the methodStarts field) from the method starts
+    private void findMethodRanges(int base, int[] text, boolean[] isStart) throws IOException {
+        int count = text.length;
+        int n = 0;
+        for(int i=0;i<count;i++) if(isStart[i] || (cold != null && cold[i] != cold[i-1])) n++;
+        methodStarts = new int[n];
+        methodOwner = new int[n];
+        methodLimit = new int[n];
+        for(int i=0,j=0,owner=-1;i<count;i++) {
+            if(isStart[i]) owner = -1;
+            else if(cold == null || cold[i] == cold[i-1]) continue;
+            int addr = base + i*4;
+            methodStarts[j] = addr;
+            if(cold != null && cold[i]) {
+                methodOwner[j] = addr;
+            } else {
+                if(owner == -1) owner = addr;
+                methodOwner[j] = owner;
+            }
+            // the trampoline can send us to any of these
+            jumpableAddresses.put(new Integer(addr),Boolean.TRUE);
+            // doIfInstruction() makes the insn after a delay slot at the start of a method jumpable, that might be
+            // too late if the method was generated first
+            if(i > 0 && hasDelaySlot(text[i-1])) jumpableAddresses.put(new Integer(addr+4),Boolean.TRUE);
+            j++;
+        }
+        for(int j=n-1,nextRange=base+count*4,nextStart=nextRange;j>=0;j--) {
+            methodLimit[j] = cold != null && cold[(methodStarts[j]-base)/4] ? nextRange : nextStart;
+            nextRange = methodStarts[j];
+            if(isStart[(methodStarts[j]-base)/4]) nextStart = nextRange;
+        }
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(n*4);
+        DataOutputStream dos = new DataOutputStream(bos);
+        for(int i=0;i<n;i++) dos.writeInt(methodStarts[i]);
+        dos.close();
+        String s = encodeData(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())),(n*4+6)/7*7,n*4);
+        
+        // string constants are limited to 64k so long tables are put back together at runtime
+        cg.addField("methodStarts",Type.INT.makeArray(),PRIVATE|STATIC|FINAL);
+        clinit.add(LDC,s.substring(0,Math.min(s.length(),32000)));
+        for(int i=32000;i<s.length();i+=32000) {
+            clinit.add(LDC,s.substring(i,Math.min(s.length(),i+32000)));
+            clinit.add(INVOKEVIRTUAL,Type.STRING.method("concat",Type.STRING,new Type[]{Type.STRING}));
+        }
+        clinit.add(LDC,n);
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.decodeData
+        clinit.add(INVOKESTATIC,Type.Class.instance("org.ibex.nestedvm.Runtime").method("decodeData",Type.INT.makeArray(),new Type[]{Type.STRING,Type.INT}));
+        clinit.add(PUTSTATIC,me.field("methodStarts",Type.INT.makeArray()));
+    }
+    
+    // Marks runs of at least MIN_COLD_INSNS instructions the profile never saw as cold
+    private void findColdCode(int base, int[] text) throws IOException {
+        Hashtable counts = readProfile();
+        cold = new boolean[text.length];
+        for(int i=0;i<text.length;i++) {
+            int j = i;
+            while(j < text.length && counts.get(new Integer(base+j*4)) == null) j++;
+            // a delay slot has to stay with its branch
+            if(i > 0 && i < j && hasDelaySlot(text[i-1])) i++;
+            if(j - i >= MIN_COLD_INSNS) for(int k=i;k<j;k++) cold[k] = true;
+            i = j;
+        }
+    }
+    
+    /** Reads a profile written by Interpreter.writeProfile(), a line with the hex address and the number of times
+        it was executed for each instruction that ran */
+    private Hashtable readProfile() throws IOException {
+        Hashtable h = new Hashtable();
+        BufferedReader br = new BufferedReader(new FileReader(profile));
+        try {
+            for(String line;(line = br.readLine()) != null;) {
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#")) continue;
+                int sp = line.indexOf(' ');
+                try {
+                    if(sp == -1) throw new NumberFormatException();
+                    String addr = line.startsWith("0x") ? line.substring(2,sp) : line.substring(0,sp);
+                    h.put(new Integer((int)Long.parseLong(addr,16)),Long.valueOf(line.substring(sp+1).trim()));
+                } catch(NumberFormatException e) {
+                    throw new IOException("Bad line in profile " + profile + ": " + line);
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return h;
+    }
+    
+    private static boolean hasDelaySlot(int insn) {
+        int op = (insn >>> 26) & 0xff;
+        switch(op) {
+            case 0: return (insn&0x3f) == 8 || (insn&0x3f) == 9; // JR, JALR
+            case 1: case 2: case 3: case 4: case 5: case 6: case 7: return true;
+            case 17: return ((insn >>> 21) & 0x1f) == 8; // BC1F, BC1T
+            default: return op >= 20 && op <= 23; // branch likely
+        }
+    }
+    
     private static final int UNREACHABLE = 1;
     private static final int SKIP_NEXT = 2;
     
     private boolean textDone; // a text segment was already processed
+    private int textStart, textEnd;
     private void emitText(int addr, DataInputStream dis, int size) throws Exn,IOException {
         if(textDone) throw new Exn("Multiple text segments");
         textDone = true;
         
         if((addr&3)!=0 || (size&3)!=0) throw new Exn("Section on weird boundaries");
         int count = size/4;
-        int insn,nextInsn=-1;
         
+        // the whole section is read up front so startMethod() can look ahead
+        int[] text = new int[count];
+        for(int i=0;i<count;i++) text[i] = dis.readInt();
+        textStart = addr;
+        textEnd = addr + size;
+        
+        if(functionMethods || profile != null || shards > 1) findMethods(addr,text);
+        
+        if(shardTypes != null && lazyText && outDir == null) {
+            lazyTextInsns = text;
+            lazyShardsLeft = shards;
+            shardFiles = new ClassFile[shards];
+        } else if(shardTypes != null) {
+            emitShards(text);
+        } else {
+            emitShard(text,0,count);
+        }
+        dis.close();
+    }
+    
+    // Emits the methods for text[from] to text[to-1]
+    private void emitShard(int[] text, int from, int to) throws Exn {
+        emitInsns(text,from,to,false);
+        // cold code goes in methods of its own once the rest is done
+        if(cold != null) {
+            for(int n=0;n<methodStarts.length;n++) {
+                int i = (methodStarts[n]-textStart)/4;
+                if(i >= from && i < to && cold[i]) emitInsns(text,i,(methodLimit[n]-textStart)/4,true);
+            }
+        }
+    }
+    
+    // The threads that generate the helper classes, shared by every compile in the JVM (RuntimeCompiler, tiered
+    // exec, BatchCompiler) so concurrent compiles don't each start a thread per processor
+    private static java.util.concurrent.ExecutorService shardPool;
+    
+    private static synchronized java.util.concurrent.ExecutorService shardPool() {
+        if(shardPool == null) {
+            shardPool = java.util.concurrent.Executors.newFixedThreadPool(
+                java.lang.Runtime.getRuntime().availableProcessors(),
+                new java.util.concurrent.ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,"nestedvm shard compiler");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return shardPool;
+    }
+    
+    // Generates the helper classes on this thread and the shared pool. Each gets a copy of this compiler with its
+    // own method state, the only things they share are jumpableAddresses and the read only tables. The pool may be
+    // busy with other compiles, this thread keeps taking shards so we never wait for a pool thread to start.
+    private void emitShards(final int[] text) throws Exn {
+        final ClassFileCompiler[] compilers = new ClassFileCompiler[shards];
+        shardFiles = new ClassFile[shards];
+        for(int k=0;k<shards;k++) compilers[k] = shardCompiler(k);
+        
+        final int[] next = new int[2]; // the next shard to generate, the number of shards finished
+        final Throwable[] error = new Throwable[1];
+        Runnable worker = new Runnable() {
+            public void run() {
+                for(;;) {
+                    int k;
+                    synchronized(next) {
+                        if(error[0] != null || next[0] == compilers.length) return;
+                        k = next[0]++;
+                    }
+                    try {
+                        compilers[k].emitShard(text,shardStarts[k],shardStarts[k+1]);
+                    } catch(Throwable t) {
+                        synchronized(next) { if(error[0] == null) error[0] = t; }
+                    } finally {
+                        synchronized(next) {
+                            next[1]++;
+                            next.notifyAll();
+                        }
+                    }
+                }
+            }
+        };
+        int helpers = Math.min(shards,java.lang.Runtime.getRuntime().availableProcessors())-1;
+        for(int i=0;i<helpers;i++) shardPool().execute(worker);
+        worker.run();
+        synchronized(next) {
+            while(next[1] != next[0]) {
+                try {
+                    next.wait();
+                } catch(InterruptedException e) {
+                    throw new Exn("Interrupted while generating the helper classes");
+                }
+            }
+        }
+        
+        if(error[0] instanceof Exn) throw (Exn) error[0];
+        if(error[0] instanceof RuntimeException) throw (RuntimeException) error[0];
+        if(error[0] instanceof Error) throw (Error) error[0];
+    }
+    
+    // A copy of this compiler that generates helper class k into a new shardFiles[k]
+    private ClassFileCompiler shardCompiler(int k) {
+        shardFiles[k] = new ClassFile(shardTypes[k],Type.Class.instance("java.lang.Object"),FINAL|SUPER);
+        if(source != null) shardFiles[k].setSourceFile(source);
+        ClassFileCompiler c;
+        try {
+            c = (ClassFileCompiler) clone();
+        } catch(CloneNotSupportedException e) {
+            throw new Error(e.toString());
+        }
+        c.cg = shardFiles[k];
+        c.shardClass = shardTypes[k];
+        c.regLocalMapping = new int[REG_COUNT];
+        c.regLocalWritten = new boolean[REG_COUNT];
+        c.regLocal = new boolean[REG_COUNT];
+        c.regUses = new int[REG_COUNT];
+        c.preSetRegStack = new int[8];
+        c.callSites = new Vector();
+        return c;
+    }
+    
+    // Emits text[from] to text[to-1] skipping any instructions that aren't as cold as coldCode
+    private void emitInsns(int[] text, int from, int to, boolean coldCode) throws Exn {
+        int addr = textStart + from*4;
+        int insn,nextInsn=-1;
         boolean skipNext = true;
         boolean unreachable = false;
         
-        for(int i=0;i<count;i++,addr+=4) {
-            insn = skipNext ? dis.readInt() : nextInsn;
-            nextInsn = (i == count-1) ? -1 : dis.readInt();
-            if(addr >= endOfMethod) { endMethod(addr,unreachable); startMethod(addr); }
-            if(insnTargets[i%maxInsnPerMethod] != null) {
-                insnTargets[i%maxInsnPerMethod].setTarget(mg.size());
+        for(int i=from;i<to;i++,addr+=4) {
+            insn = text[i];
+            nextInsn = (i == text.length-1) ? -1 : text[i+1];
+            if(cold != null && cold[i] != coldCode) {
+                if(!unreachable && startOfMethod != 0) {
+                    // falling through into code that lives in another method
+                    preSetPC();
+                    mg.add(LDC,addr);
+                    setPC();
+                    leaveMethod();
+                }
+                unreachable = true;
+                continue;
+            }
+            if(addr >= endOfMethod) { endMethod(addr,unreachable); startMethod(addr,text,i); }
+            if(insnTargets[(addr-startOfMethod)/4] != null) {
+                insnTargets[(addr-startOfMethod)/4].setTarget(mg.size());
                 unreachable = false;
+                v0Const = -1;
             } else if(unreachable) {
                 continue;
             }
@@ -477,6 +1019,8 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                 int ret = emitInstruction(addr,insn,nextInsn);
                 unreachable =  (ret & UNREACHABLE) != 0;
                 skipNext = (ret & SKIP_NEXT) != 0;
+                v0Const = v0After(insn,v0Const);
+                if(skipNext) v0Const = v0After(nextInsn,v0Const);
             } catch(Exn e) {
                 e.printStackTrace(warn);
                 warn.println("Exception at " + toHex(addr));
@@ -487,36 +1031,55 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             }
             if(skipNext) { addr+=4; i++; }
         }
-        endMethod(0,unreachable);
-        dis.close();
+        endMethod(to == text.length ? 0 : textStart + to*4,unreachable);
     }
     
-    private void startMethod(int first) {
-        startOfMethod = first & methodMask;
-        endOfMethod = startOfMethod + maxBytesPerMethod;
+    private void startMethod(int first, int[] text, int index) {
+        if(methodStarts != null) {
+            int n = Runtime.methodIndex(methodStarts,first);
+            startOfMethod = methodOwner[n];
+            endOfMethod = methodLimit[n];
+            coldMethod = cold != null && cold[index];
+        } else {
+            startOfMethod = first & methodMask;
+            endOfMethod = startOfMethod + maxBytesPerMethod;
+        }
+        int methodInsns = (endOfMethod-startOfMethod)/4;
+        
+        chooseLocals(text,index,Math.min(text.length,index+(endOfMethod-first)/4));
         
-        mg = cg.addMethod("run_" + toHex(startOfMethod),Type.VOID,Type.NO_ARGS,PRIVATE|FINAL);
+        if(shardClass == null)
+            mg = cg.addMethod("run_" + toHex(startOfMethod),Type.VOID,Type.NO_ARGS,PRIVATE|FINAL);
+        else
+            mg = cg.addMethod("run_" + toHex(startOfMethod),Type.VOID,new Type[]{me},STATIC|FINAL);
         if(onePage) {
             mg.add(ALOAD_0);
             mg.add(GETFIELD,me.field("page",Type.INT.makeArray()));
             mg.add(ASTORE_2);
+        } else if(offHeap) {
+            mg.add(ALOAD_0);
+            getRuntimeField("readBuffers",BYTE_BUFFER.makeArray());
+            mg.add(ASTORE_2);
+            mg.add(ALOAD_0);
+            getRuntimeField("writeBuffers",BYTE_BUFFER.makeArray());
+            mg.add(ASTORE_3);
         } else {
             mg.add(ALOAD_0);
-            mg.add(GETFIELD,me.field("readPages",Type.INT.makeArray(2)));
+            getRuntimeField("readPages",Type.INT.makeArray(2));
             mg.add(ASTORE_2);
             mg.add(ALOAD_0);
-            mg.add(GETFIELD,me.field("writePages",Type.INT.makeArray(2)));
+            getRuntimeField("writePages",Type.INT.makeArray(2));
             mg.add(ASTORE_3);
         }
         
         returnTarget = new MethodGen.PhantomTarget();
-        insnTargets = new MethodGen.PhantomTarget[maxBytesPerMethod/4];
+        insnTargets = new MethodGen.PhantomTarget[methodInsns];
         
-        int[] buf = new int[maxBytesPerMethod/4];
-        Object[] targetBuf = new Object[maxBytesPerMethod/4];
+        int[] buf = new int[methodInsns];
+        Object[] targetBuf = new Object[methodInsns];
         int n = 0;
         for(int addr=first;addr<endOfMethod;addr+=4) {
-            if(jumpable(addr)) {
+            if(jumpable(addr) && inMethod(addr)) {
                 targetBuf[n] = insnTargets[(addr-startOfMethod)/4] = new MethodGen.PhantomTarget();
                 buf[n] = addr;
                 n++;
@@ -599,7 +1162,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
     }
 
     private void branch(int pc, int target) {
-        if((pc&methodMask) == (target&methodMask)) {
+        if(inMethod(target)) {
             mg.add(GOTO,insnTargets[(target-startOfMethod)/4]);
         } else {
             preSetPC();
@@ -609,10 +1172,119 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         }
     }
     
+    // The value an li earlier in this basic block put in V0, -1 if it isn't known
+    private int v0Const = -1;
+    
+    // The value in V0 after insn given the value before it
+    private static int v0After(int insn, int v0) {
+        int op = (insn >>> 26) & 0xff;
+        int rs = (insn >>> 21) & 0x1f;
+        int rt = (insn >>> 16) & 0x1f;
+        int rd = (insn >>> 11) & 0x1f;
+        switch(op) {
+            case 0: // SYSCALL returns in V0, the others that don't write rd have rd == 0
+                return (insn & 0x3f) == 12 || rd == V0 ? -1 : v0;
+            case 1: case 2: case 4: case 5: case 6: case 7: // branches (the linking ones write RA)
+            case 40: case 41: case 42: case 43: case 46: case 49: case 57: // stores, LWC1
+                return v0;
+            case 9: // ADDIU
+                if(rt != V0) return v0;
+                return rs == 0 ? (short)insn : -1;
+            case 13: // ORI
+                if(rt != V0) return v0;
+                return rs == 0 ? insn & 0xffff : -1;
+            case 8: case 10: case 11: case 12: case 14: case 15: case 17:
+            case 32: case 33: case 34: case 35: case 36: case 37: case 38:
+                return rt == V0 ? -1 : v0;
+            default: // JAL and anything else
+                return -1;
+        }
+    }
+    
+    // Syscalls that never look at the pc field. Before any other one (fork() copies the pc for the child,
+    // a subclass might have its own that look at it) the pc has to be stored.
+    private static final int[] PC_FREE_SYSCALLS = {
+        UsermodeConstants.SYS_exit, UsermodeConstants.SYS_pause, UsermodeConstants.SYS_open,
+        UsermodeConstants.SYS_close, UsermodeConstants.SYS_read, UsermodeConstants.SYS_write,
+        UsermodeConstants.SYS_sbrk, UsermodeConstants.SYS_fstat, UsermodeConstants.SYS_lseek,
+        UsermodeConstants.SYS_getpid, UsermodeConstants.SYS_stat, UsermodeConstants.SYS_gettimeofday,
+        UsermodeConstants.SYS_times, UsermodeConstants.SYS_getpagesize, UsermodeConstants.SYS_memcpy,
+        UsermodeConstants.SYS_memset, UsermodeConstants.SYS_sysconf, UsermodeConstants.SYS_lstat
+    };
+    
+    private static boolean pcFreeSyscall(int n) {
+        for(int i=0;i<PC_FREE_SYSCALLS.length;i++) if(PC_FREE_SYSCALLS[i] == n) return true;
+        return false;
+    }
+    
+    private static final int MAX_CALL_DEPTH = 256;
+    
+    // The first instructions of the register stores and loads around each direct call in this method (and of the
+    // stores before each syscall, these have no loads)
+    private Vector callSites = new Vector();
+    
+    // Calls the method containing target (the return address is already linked) without going through the
+    // trampoline. We carry on at the return address if the callee gets back there with the process still running,
+    // otherwise this method exits and the trampoline takes over. Past MAX_CALL_DEPTH nested direct calls we
+    // just branch(). The registers kept in locals are stored before the call and loaded again after it, these
+    // are filled in by fixupRegsEnd() once we know which locals the method uses.
+    private void directCall(int pc, int target) {
+        preSetPC();
+        mg.add(LDC,target);
+        setPC();
+        
+        mg.add(ALOAD_0);
+        mg.add(GETFIELD,me.field("jalDepth",Type.INT));
+        mg.add(LDC,MAX_CALL_DEPTH);
+        int tooDeep = mg.add(IF_ICMPGE);
+        
+        int stores = mg.size();
+        for(int i=0;i<regLocalCount*LOAD_LENGTH;i++) mg.add(NOP);
+        
+        mg.add(ALOAD_0);
+        mg.add(DUP);
+        mg.add(GETFIELD,me.field("jalDepth",Type.INT));
+        mg.add(ICONST_1);
+        mg.add(IADD);
+        mg.add(PUTFIELD,me.field("jalDepth",Type.INT));
+        
+        int start = methodStarts != null ? methodOwner[Runtime.methodIndex(methodStarts,target)] : target & methodMask;
+        mg.add(ALOAD_0);
+        invokeRun(mg,start);
+        
+        mg.add(ALOAD_0);
+        mg.add(DUP);
+        mg.add(GETFIELD,me.field("jalDepth",Type.INT));
+        mg.add(ICONST_1);
+        mg.add(ISUB);
+        mg.add(PUTFIELD,me.field("jalDepth",Type.INT));
+        
+        int loads = mg.size();
+        for(int i=0;i<regLocalCount*LOAD_LENGTH;i++) mg.add(NOP);
+        callSites.addElement(new int[]{stores,loads});
+        
+        mg.add(ALOAD_0);
+        getRuntimeField("state",Type.INT);
+        int notRunning = mg.add(IFNE);
+        mg.add(ALOAD_0);
+        mg.add(GETFIELD,me.field("pc",Type.INT));
+        mg.add(LDC,pc+8);
+        int elsewhere = mg.add(IF_ICMPNE);
+        if(inMethod(pc+8) && insnTargets[(pc+8-startOfMethod)/4] != null)
+            mg.add(GOTO,insnTargets[(pc+8-startOfMethod)/4]);
+        else
+            leaveMethod();
+        
+        mg.setArg(tooDeep,mg.size());
+        mg.setArg(notRunning,mg.size());
+        mg.setArg(elsewhere,mg.size());
+        leaveMethod();
+    }
+    
     // This assumes everything needed by ifInsn is already on the stack
     private int doIfInstruction(byte op, int pc, int target, int nextInsn) throws Exn {
         emitInstruction(-1,nextInsn,-1); // delay slot
-        if((target&methodMask) == (pc&methodMask)) {
+        if(inMethod(target)) {
             mg.add(op,insnTargets[(target-startOfMethod)/4]);
         } else {
             int h = mg.add(MethodGen.negate(op));
@@ -738,13 +1410,19 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                 ret |= UNREACHABLE;
                 break;
             case 12: // SYSCALL
-                preSetPC();
-                mg.add(LDC,pc);
-                setPC();
+                // the pc is stored again below if the syscall changes the state
+                if(!pcFreeSyscall(v0Const)) {
+                    preSetPC();
+                    mg.add(LDC,pc);
+                    setPC();
+                }
                 
-                // FEATURE: This is actually broken, but it happens to work for our code
-                // a func could theoretically jump back to here from a future point
-                restoreChangedRegs();
+                // Every register kept in a local that the method writes anywhere is stored (a branch can get here
+                // after a later write), fork() and syscalls implemented in java read the fields. These are filled in by
+                // fixupRegsEnd().
+                int stores = mg.size();
+                for(int i=0;i<regLocalCount*LOAD_LENGTH;i++) mg.add(NOP);
+                callSites.addElement(new int[]{stores,-1});
                 
                 preSetReg(R+V0);
                 mg.add(ALOAD_0);
@@ -756,11 +1434,11 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                 pushRegZ(R+T0);
                 pushRegZ(R+T1);
                 // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.syscall
-                mg.add(INVOKEVIRTUAL,me.method("syscall",Type.INT,new Type[]{Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT}));
+                invokeRuntime("syscall",Type.INT,new Type[]{Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT});
                 setReg();
                 
                 mg.add(ALOAD_0);
-                mg.add(GETFIELD,me.field("state",Type.INT));
+                getRuntimeField("state",Type.INT);
                 b1 = mg.add(IFEQ);
                 preSetPC();
                 mg.add(LDC,pc+4);
@@ -906,6 +1584,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                     pushRegZ(R+rt);
                 }
                 setReg();
+                if(rd == SP) stackCheck();
                 break;
             case 34: // SUB
                 throw new Exn("SUB (add with oveflow trap) not suported");
@@ -922,6 +1601,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                     pushRegZ(R+rs);
                 }
                 setReg();                
+                if(rd == SP) stackCheck();
                 break;
             case 36: // AND
                 preSetReg(R+rd);
@@ -1059,7 +1739,10 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             int target = (pc&0xf0000000)|(jumpTarget << 2);
             emitInstruction(-1,nextInsn,-1);
             link(pc);
-            branch(pc, target);
+            if(directCalls && !inMethod(target) && target >= textStart && target < textEnd)
+                directCall(pc,target);
+            else
+                branch(pc, target);
             ret |= UNREACHABLE;
             break;
         }
@@ -1107,6 +1790,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                 addiu(rs,signedImmediate);
                 setReg();
             }
+            if(rt == SP && signedImmediate < 0) stackCheck();
             break;
         case 10: // SLTI
             preSetReg(R+rt);
@@ -1374,6 +2058,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         case 18: case 19:
             throw new Exn("coprocessor 2 and 3 instructions not available");
         case 32: { // LB
+            if(offHeap) { bufferLoad(rs,rt,signedImmediate,"get",Type.BYTE,0); break; }
             preSetReg(R+rt);
             addiu(R+rs,signedImmediate);
             setTmp();
@@ -1394,6 +2079,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             break; 
         }
         case 33: { // LH
+            if(offHeap) { bufferLoad(rs,rt,signedImmediate,"getShort",Type.SHORT,0); break; }
             preSetReg(R+rt);
             addiu(R+rs,signedImmediate);
             setTmp();
@@ -1454,6 +2140,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             setReg();
             break;
         case 36: { // LBU
+            if(offHeap) { bufferLoad(rs,rt,signedImmediate,"get",Type.BYTE,0xff); break; }
             preSetReg(R+rt);
             addiu(R+rs,signedImmediate);
             setTmp();
@@ -1475,6 +2162,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             break; 
         }
         case 37: { // LHU
+            if(offHeap) { bufferLoad(rs,rt,signedImmediate,"getShort",Type.SHORT,0xffff); break; }
             preSetReg(R+rt);
             addiu(R+rs,signedImmediate);
             setTmp();
@@ -1531,6 +2219,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             break;
         }
         case 40: { // SB            
+            if(offHeap) { bufferStore(rs,rt,signedImmediate,"put",Type.BYTE); break; }
             addiu(R+rs,signedImmediate);
             setTmp(); // addr
             
@@ -1573,6 +2262,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             break;
         }
         case 41: { // SH    
+            if(offHeap) { bufferStore(rs,rt,signedImmediate,"putShort",Type.SHORT); break; }
             addiu(R+rs,signedImmediate);
             setTmp();
             
@@ -1742,17 +2432,79 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             "f24","f25","f26","f27","f28","f29","f30","f31",
             "hi","lo","fcsr"
     };
-    private static final int MAX_LOCALS = 4; // doLocal can return true for this many regs
+    private static final int MAX_LOCALS = 16; // doLocal can return true for this many regs
     private static final int LOAD_LENGTH = 3; // number of instructions needed to load a field to a reg
     
     // Local register state info
     private int[] regLocalMapping = new int[REG_COUNT];  
     private boolean[] regLocalWritten = new boolean[REG_COUNT];
+    private boolean[] regLocal = new boolean[REG_COUNT];
+    private int regLocalCount;
+    private int[] regUses = new int[REG_COUNT];
     private int nextAvailLocal;
     private int loadsStart;
     
     private boolean doLocal(int reg) {
-        return reg == R+2 || reg == R+3 || reg == R+4 || reg == R+29;
+        return regLocal[reg];
+    }
+    
+    // Picks the (at most MAX_LOCALS) registers used most often by text[start] to text[end-1] to be kept in locals.
+    // They are loaded on entry to the method and only written back when it exits or makes a syscall.
+    private void chooseLocals(int[] text, int start, int end) {
+        for(int i=0;i<REG_COUNT;i++) { regUses[i] = 0; regLocal[i] = false; }
+        for(int i=start;i<end;i++) countRegUses(text[i]);
+        regUses[R+0] = 0;
+        if(singleFloat) for(int i=0;i<32;i++) regUses[F+i] = 0;
+        for(regLocalCount=0;regLocalCount<MAX_LOCALS;regLocalCount++) {
+            int best = -1;
+            for(int i=0;i<REG_COUNT;i++)
+                if(!regLocal[i] && regUses[i] >= 2 && (best == -1 || regUses[i] > regUses[best])) best = i;
+            if(best == -1) break;
+            regLocal[best] = true;
+        }
+    }
+    
+    // Roughly counts the registers accessed by insn (this only affects which registers get locals)
+    private void countRegUses(int insn) {
+        int op = (insn >>> 26) & 0xff;
+        int rs = (insn >>> 21) & 0x1f;
+        int rt = (insn >>> 16) & 0x1f;
+        int rd = (insn >>> 11) & 0x1f;
+        int fd = (insn >>> 6) & 0x1f;
+        int subcode = insn & 0x3f;
+        switch(op) {
+            case 0:
+                if(subcode == 12) { // SYSCALL
+                    regUses[R+V0]++; regUses[R+A0]++; regUses[R+A1]++; regUses[R+A2]++; regUses[R+A3]++;
+                    regUses[R+T0]++; regUses[R+T1]++;
+                    break;
+                }
+                regUses[R+rs]++; regUses[R+rt]++; regUses[R+rd]++;
+                if(subcode >= 16 && subcode <= 27) { regUses[HI]++; regUses[LO]++; }
+                break;
+            case 2:
+                break;
+            case 3: // JAL
+                regUses[R+RA]++;
+                break;
+            case 17: // FPU
+                if(rs == 0 || rs == 4) { regUses[R+rt]++; regUses[F+rd]++; }
+                else if(rs == 2 || rs == 6) { regUses[R+rt]++; regUses[FCSR]++; }
+                else if(rs == 8) regUses[FCSR]++;
+                else {
+                    boolean d = rs == 17;
+                    regUses[F+rd]++; regUses[F+rt]++; regUses[F+fd]++;
+                    if(d) { regUses[F+((rd+1)&31)]++; regUses[F+((rt+1)&31)]++; regUses[F+((fd+1)&31)]++; }
+                    if(subcode >= 48 || (subcode >= 32 && subcode <= 36)) regUses[FCSR]++;
+                }
+                break;
+            case 49: case 57: // LWC1, SWC1
+                regUses[R+rs]++; regUses[F+rt]++;
+                break;
+            default:
+                regUses[R+rs]++; regUses[R+rt]++;
+                break;
+        }
     }
     
     private int getLocalForReg(int reg) {
@@ -1767,8 +2519,9 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             regLocalWritten[i] = false;
         }
         nextAvailLocal = onePage ? 4 : 5;
+        callSites.removeAllElements();
         loadsStart = mg.size();
-        for(int i=0;i<MAX_LOCALS*LOAD_LENGTH;i++)
+        for(int i=0;i<regLocalCount*LOAD_LENGTH;i++)
             mg.add(NOP);
     }
     
@@ -1786,14 +2539,21 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                 mg.add(PUTFIELD,me.field(regField[i],Type.INT));
             }
         }
-    }
         
-    private void restoreChangedRegs() {
-        for(int i=0;i<REG_COUNT;i++) {
-            if(regLocalWritten[i]) {
-                mg.add(ALOAD_0);
-                mg.add(ILOAD,regLocalMapping[i]);
-                mg.add(PUTFIELD,me.field(regField[i],Type.INT));
+        for(int n=0;n<callSites.size();n++) {
+            int[] site = (int[]) callSites.elementAt(n);
+            int stores = site[0], loads = site[1];
+            for(int i=0;i<REG_COUNT;i++) {
+                if(regLocalMapping[i] == 0) continue;
+                if(regLocalWritten[i]) {
+                    mg.set(stores++,ALOAD_0);
+                    mg.set(stores++,ILOAD,regLocalMapping[i]);
+                    mg.set(stores++,PUTFIELD,me.field(regField[i],Type.INT));
+                }
+                if(loads == -1) continue;
+                mg.set(loads++,ALOAD_0);
+                mg.set(loads++,GETFIELD,me.field(regField[i],Type.INT));
+                mg.set(loads++,ISTORE,regLocalMapping[i]);
             }
         }
     }
@@ -1963,13 +2723,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         if(memWriteStage!=1) throw new Error("pending preMemWrite2 or no preMemWrite1");
         memWriteStage=2;
         
-        if(nullPointerCheck) {
-            mg.add(DUP);
-            mg.add(ALOAD_0);
-            mg.add(SWAP);
-            // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.nullPointerCheck
-            mg.add(INVOKEVIRTUAL,me.method("nullPointerCheck",Type.VOID,new Type[]{Type.INT}));
-        }
+        if(nullPointerCheck) nullPointerCheck();
         
         if(onePage) {
             mg.add(ICONST_2);
@@ -1980,15 +2734,114 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             mg.add(LDC,pageShift);
             mg.add(IUSHR);
             mg.add(AALOAD);
+            writeFaultCheck(addrInTmp);
             if(addrInTmp)
                 pushTmp();
             else
                 mg.add(SWAP);
+            pageIndex();
+        }
+    }
+    
+    // onePage has no guard pages below the stack, so anything that moves the stack pointer with arithmetic
+    // (prologues, alloca) checks it against the bottom of the stack
+    private void stackCheck() {
+        if(!onePage || !nullPointerCheck) return;
+        mg.add(ALOAD_0);
+        pushReg(R+SP);
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.stackCheck
+        invokeRuntime("stackCheck",Type.VOID,INT_ARG);
+    }
+    
+    // Checks the address on the top of the stack, the call is only made for addresses below 64k, negative ones included
+    private void nullPointerCheck() {
+        mg.add(DUP);
+        mg.add(LDC,16);
+        mg.add(ISHR);
+        int b = mg.add(IFGT);
+        mg.add(DUP);
+        mg.add(ALOAD_0);
+        mg.add(SWAP);
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.nullPointerCheck
+        invokeRuntime("nullPointerCheck",Type.VOID,INT_ARG);
+        mg.setArg(b,mg.size());
+    }
+    
+    // offHeap pages are byte addressable so LB/LH/SB/SH are a single get/put rather than a word read
+    // (and write) with shifts and masks
+    private void bufferLoad(int rs, int rt, int offset, String method, Type type, int mask) {
+        preSetReg(R+rt);
+        addiu(R+rs,offset);
+        setTmp();
+        bufferAddr(false,type == Type.SHORT);
+        mg.add(INVOKEVIRTUAL,BYTE_BUFFER.method(method,type,INT_ARG));
+        if(mask != 0) {
+            mg.add(LDC,mask);
+            mg.add(IAND);
+        }
+        setReg();
+    }
+    
+    private void bufferStore(int rs, int rt, int offset, String method, Type type) {
+        addiu(R+rs,offset);
+        setTmp();
+        bufferAddr(true,type == Type.SHORT);
+        pushRegZ(R+rt);
+        mg.add(type == Type.SHORT ? I2S : I2B);
+        mg.add(INVOKEVIRTUAL,BYTE_BUFFER.method(method,BYTE_BUFFER,new Type[]{Type.INT,type}));
+        mg.add(POP);
+    }
+    
+    // Pushes the page holding the address in tmp and the byte offset of the address in it
+    private void bufferAddr(boolean write, boolean halfword) {
+        mg.add(ALOAD,write ? 3 : 2);
+        pushTmp();
+        if(nullPointerCheck) nullPointerCheck();
+        mg.add(LDC,pageShift);
+        mg.add(IUSHR);
+        mg.add(AALOAD);
+        if(write) writeFaultCheck(true);
+        pushTmp();
+        mg.add(LDC,halfword ? (pageSize-1)&~1 : pageSize-1);
+        mg.add(IAND);
+    }
+    
+    // Turns the address on the top of the stack into an index into its page
+    // (a word index for int[] pages, a byte offset for offHeap ByteBuffers)
+    private void pageIndex() {
+        if(offHeap) {
+            mg.add(LDC,(pageSize-1)&~3);
+            mg.add(IAND);
+        } else {
             mg.add(ICONST_2);
             mg.add(IUSHR);
             mg.add(LDC,(pageSize>>2)-1);
-            mg.add(IAND);            
+            mg.add(IAND);
+        }
+    }
+    
+    // Replaces a null writePages entry on the top of the stack with the result of writeFault(addr)
+    // (the address is either in tmp or just below the page on the stack)
+    private void writeFaultCheck(boolean addrInTmp) {
+        mg.add(DUP);
+        int b = mg.add(IFNONNULL);
+        mg.add(POP);
+        if(addrInTmp) {
+            mg.add(ALOAD_0);
+            pushTmp();
+        } else {
+            mg.add(DUP);
+            mg.add(ALOAD_0);
+            mg.add(SWAP);
+        }
+        if(offHeap) {
+            // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.writeBufferFault
+            invokeRuntime("writeBufferFault",BYTE_BUFFER,new Type[]{Type.INT});
+        } else {
+            // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.writeFault
+            invokeRuntime("writeFault",Type.INT.makeArray(),new Type[]{Type.INT});
         }
+        mg.setArg(b,mg.size());
     }
     
     // pops an address and value off the stack, sets *addr to value
@@ -1998,11 +2851,14 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                 
         if(onePage) {
             mg.add(IASTORE);
+        } else if(offHeap) {
+            mg.add(INVOKEVIRTUAL,BYTE_BUFFER.method("putInt",BYTE_BUFFER,new Type[]{Type.INT,Type.INT}));
+            mg.add(POP);
         } else if(fastMem) {
             mg.add(IASTORE);
         } else {
             // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.unsafeMemWrite
-            mg.add(INVOKEVIRTUAL,me.method("unsafeMemWrite",Type.VOID,new Type[]{Type.INT,Type.INT}));
+            invokeRuntime("unsafeMemWrite",Type.VOID,new Type[]{Type.INT,Type.INT});
         }
         
     }
@@ -2039,12 +2895,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         if(preMemReadDoPreWrite)
             memWriteStage=2; 
             
-        if(nullPointerCheck) {
-            mg.add(DUP);
-            mg.add(ALOAD_0);
-            mg.add(SWAP);
-            mg.add(INVOKEVIRTUAL,me.method("nullPointerCheck",Type.VOID,new Type[]{Type.INT}));
-        }
+        if(nullPointerCheck) nullPointerCheck();
         
         if(onePage) {
             mg.add(ICONST_2);
@@ -2058,23 +2909,25 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             mg.add(LDC,pageShift);
             mg.add(IUSHR);
             mg.add(AALOAD);
+            if(preMemReadDoPreWrite)
+                writeFaultCheck(addrInTmp);
             if(addrInTmp)
                 pushTmp();
             else
                 mg.add(SWAP);
-            mg.add(ICONST_2);
-            mg.add(IUSHR);
-            mg.add(LDC,(pageSize>>2)-1);
-            mg.add(IAND);
+            pageIndex();
             if(preMemReadDoPreWrite)
                 mg.add(DUP2);
-            mg.add(IALOAD);
+            if(offHeap)
+                mg.add(INVOKEVIRTUAL,BYTE_BUFFER.method("getInt",Type.INT,new Type[]{Type.INT}));
+            else
+                mg.add(IALOAD);
             
         } else {
             if(preMemReadDoPreWrite)
                 mg.add(DUP2);
             // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.unsafeMemRead
-            mg.add(INVOKEVIRTUAL,me.method("unsafeMemRead",Type.INT,new Type[]{Type.INT}));
+            invokeRuntime("unsafeMemRead",Type.INT,new Type[]{Type.INT});
         }
     }
     
@@ -45,6 +45,37 @@ public abstract class Compiler implements Registers {
         while(maxBytesPerMethod>>>methodShift != 1) methodShift++;
     }
     
+    // True to start a new java method at each function in the symtab rather than every maxInsnPerMethod
+    // instructions. Calls and returns between functions then go through the trampoline but branches within
+    // a function never do.
+    boolean functionMethods;
+    
+    // Functions longer than this are split into several methods when functionMethods is set. Like
+    // maxInsnPerMethod this keeps the methods under HotSpot's limit on the size of methods it compiles.
+    int maxInsnPerFunction = 128;
+    
+    // True to invoke the java method of a JAL target directly instead of returning to the trampoline
+    // (ClassFileCompiler only)
+    boolean directCalls;
+    
+    // A profile written by the Interpreter. Code that never ran is compiled into separate methods so the ones
+    // with the code that did run stay small. (ClassFileCompiler only)
+    String profile;
+    
+    // The number of classes the text is spread across, 0 picks one for every 64k instructions. This gets
+    // around the constant pool limit and lets the classes be generated in parallel. (ClassFileCompiler only)
+    int textShards = 1;
+    
+    // True to write the pages of the data segments to a resource next to the class (Class.data) that the first
+    // instance loads (off heap runtimes map it so pages are only read when used), rather than decoding them from
+    // string constants in <clinit> (ClassFileCompiler only)
+    boolean dataResource;
+    
+    // True to put off generating each helper class of the sharded text until it is asked for (ClassFileCompiler
+    // getHelperClass(), RuntimeCompiler does this when the class is first loaded). Without textShards the text is
+    // split every 4k instructions.
+    boolean lazyText;
+    
     // True to try to determine which case statement are needed and only include them
     boolean pruneCases = true;
     
@@ -78,6 +109,11 @@ public abstract class Compiler implements Registers {
     int pageShift;
     boolean onePage;
     
+    // Size of the flat address space, implies onePage (0 to use pageSize)
+    int memorySize;
+    
+    boolean offHeap;
+    
     void pageSizeInit() throws Exn {
         if((pageSize&(pageSize-1)) != 0) throw new Exn("pageSize not a multiple of two");
         if((totalPages&(totalPages-1)) != 0) throw new Exn("totalPages not a multiple of two");
@@ -181,6 +217,24 @@ public abstract class Compiler implements Registers {
             
         try {
             comp.go();
+            if(comp instanceof ClassFileCompiler && outfile != null) {
+                // helper classes and resources go next to the main class
+                Hashtable helpers = ((ClassFileCompiler) comp).getHelperClasses();
+                Hashtable resources = ((ClassFileCompiler) comp).getResources();
+                File dir = new File(outfile).getAbsoluteFile().getParentFile();
+                for(Enumeration e = helpers.keys();e.hasMoreElements();) {
+                    String name = (String) e.nextElement();
+                    OutputStream hos = new FileOutputStream(new File(dir,name.substring(name.lastIndexOf('.')+1) + ".class"));
+                    hos.write((byte[]) helpers.get(name));
+                    hos.close();
+                }
+                for(Enumeration e = resources.keys();e.hasMoreElements();) {
+                    String name = (String) e.nextElement();
+                    OutputStream ros = new FileOutputStream(new File(dir,name.substring(name.lastIndexOf('/')+1)));
+                    ros.write((byte[]) resources.get(name));
+                    ros.close();
+                }
+            }
         } catch(Exn e) {
             System.err.println("Compiler Error: " + e.getMessage());
             System.exit(1);
@@ -206,11 +260,16 @@ public abstract class Compiler implements Registers {
         if(used) throw new RuntimeException("Compiler instances are good for one shot only");
         used = true;
         
+        if(memorySize < 0) throw new Exn("memorySize can't be negative");
+        if(memorySize != 0) { onePage = true; pageSize = memorySize; }
         if(onePage && pageSize <= 4096) pageSize = 4*1024*1024;
         if(nullPointerCheck && !fastMem) throw new Exn("fastMem must be enabled for nullPointerCheck to be of any use");
         if(onePage && !fastMem) throw new Exn("fastMem must be enabled for onePage to be of any use");
         if(totalPages == 1 && !onePage) throw new Exn("totalPages == 1 and onePage is not set");
         if(onePage) totalPages = 1;
+        if(offHeap && (onePage || !fastMem)) throw new Exn("offHeap requires fastMem and can't be used with onePage");
+        if(functionMethods && maxInsnPerFunction < 2) throw new Exn("maxInsnPerFunction must be at least 2");
+        if(textShards < 0) throw new Exn("textShards can't be negative");
 
         maxInsnPerMethodInit();
         pageSizeInit();
@@ -423,7 +482,7 @@ public abstract class Compiler implements Registers {
     
     private static String[] options = {
         "fastMem",          "Enable fast memory access - RuntimeExceptions will be thrown on faults",
-        "nullPointerCheck", "Enables checking at runtime for null pointer accessses (slows things down a bit, only applicable with fastMem)",
+        "nullPointerCheck", "Enables checking at runtime for null pointer accessses (slows things down a bit, only applicable with fastMem). With onePage the stack pointer is checked against the bottom of the stack too",
         "maxInsnPerMethod", "Maximum number of MIPS instructions per java method (128 is optimal with Hotspot)",
         "pruneCases",       "Remove unnecessary case 0xAABCCDD blocks from methods - may break some weird code",
         "assumeTailCalls",  "Assume the JIT optimizes tail calls",
@@ -437,9 +496,18 @@ public abstract class Compiler implements Registers {
         "unixRuntime",      "Use the UnixRuntime (has support for fork, wai, du, pipe, etc)",
         "pageSize",         "The page size (must be a power of two)",
         "totalPages",       "Total number of pages (total mem = pageSize*totalPages, must be a power of two)",
-        "onePage",          "One page hack (FIXME: document this better)",
+        "onePage",          "Keep all of memory in one flat int[] - each load/store is a single array access (4MB unless memorySize or pageSize is set)",
+        "memorySize",       "Size of the onePage address space (must be a power of two, implies onePage)",
         "lessConstants",    "Use less constants at the cost of speed (FIXME: document this better)",
-        "singleFloat",      "Support single precision (32-bit) FP ops only"
+        "singleFloat",      "Support single precision (32-bit) FP ops only",
+        "offHeap",          "Keep the process's memory in direct ByteBuffers outside the java heap",
+        "functionMethods",  "Generate one java method per function instead of one every maxInsnPerMethod instructions",
+        "maxInsnPerFunction", "Maximum number of MIPS instructions per java method with functionMethods (longer functions are split, 128 is optimal with Hotspot)",
+        "directCalls",      "Call the java method of a JAL target directly rather than through the trampoline (ClassFileCompiler only)",
+        "profile",          "Instruction profile from the Interpreter (-Dnestedvm.profile=file) used to move code that never ran out of the way",
+        "textShards",       "Number of classes to spread the text across (0 for one every 64k instructions)",
+        "dataResource",     "Put the data segments in a resource next to the class instead of in string constants (pages are only mapped lazily with offHeap when the resource is a plain file, otherwise they are copied when the first instance is created)",
+        "lazyText",         "Only generate the helper classes of the text when they are first loaded (RuntimeCompiler)"
     };
         
     private Option getOption(String name) {
@@ -33,6 +33,10 @@ public class Interpreter extends UnixRuntime implements Cloneable {
     public String image;
     private ELF.Symtab symtab;
     
+    // Execution counts for each instruction in .text when profiling (see writeProfile())
+    private int[] profile;
+    private int textAddr, textSize;
+    
     // Register Operations
     private final void setFC(boolean b) { fcsr = (fcsr&~0x800000) | (b ? 0x800000 : 0x000000); }
     private final int roundingMode() { return fcsr & 3; /* bits 0-1 */ }
@@ -70,6 +74,7 @@ public class Interpreter extends UnixRuntime implements Cloneable {
         int[] f = fpregs;
         int pc = this.pc;
         int nextPC = pc + 4;
+        int[] profile = this.profile;
     try {
     OUTER: for(;;) {
         int insn;
@@ -79,6 +84,7 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             if(pc == 0xdeadbeef) throw new Error("fell off cpu: r2: " + r[2]);
             insn = memRead(pc);
         }
+        if(profile != null && pc - textAddr >= 0 && pc - textAddr < textSize) profile[(pc - textAddr)>>>2]++;
 
         int op = (insn >>> 26) & 0xff;                 // bits 26-31
         int rs = (insn >>> 21) & 0x1f;                 // bits 21-25
@@ -131,6 +137,10 @@ public class Interpreter extends UnixRuntime implements Cloneable {
                         this.pc = pc;
                         r[V0] = syscall(r[V0],r[A0],r[A1],r[A2],r[A3],r[T0],r[T1]);
                         if(state != RUNNING) { this.pc = nextPC; break OUTER; }
+                        if(tieredCompile != null) {
+                            this.pc = nextPC;
+                            if(tieredSafePoint()) break OUTER;
+                        }
                         break;
                     case 13: // BREAK
                         throw new ExecutionException("Break");
@@ -688,6 +698,9 @@ public class Interpreter extends UnixRuntime implements Cloneable {
         
         entryPoint = elf.header.entry;
         
+        ELF.SHeader text = elf.sectionWithName(".text");
+        if(text != null) { textAddr = text.addr; textSize = text.size; }
+        
         ELF.PHeader[] pheaders = elf.pheaders;
         int brk = 0;
         int pageSize = (1<<pageShift);
@@ -737,6 +750,9 @@ public class Interpreter extends UnixRuntime implements Cloneable {
         state.pc=pc;
     }
     
+    // Stores that miss writePages fall back to memWrite() which handles copy-on-write pages
+    protected boolean handlesWriteFaults() { return true; }
+    
     public Interpreter(Seekable data) throws IOException {
         super(4096,65536);
         loadImage(data);
@@ -747,6 +763,20 @@ public class Interpreter extends UnixRuntime implements Cloneable {
     }
     public Interpreter(InputStream is) throws IOException { this(new Seekable.InputStream(is)); }
     
+    /** Starts counting how often each instruction is executed, processes forked from this one share the counts */
+    public void enableProfile() { if(profile == null) profile = new int[textSize>>>2]; }
+    
+    /** Writes the instruction counts collected since enableProfile() in the format the compiler's profile
+        option reads */
+    public void writeProfile(OutputStream os) throws IOException {
+        if(profile == null) throw new IllegalStateException("profiling isn't enabled");
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(os));
+        pw.println("# nestedvm instruction profile" + (image == null ? "" : " for " + image));
+        for(int i=0;i<profile.length;i++)
+            if(profile[i] != 0) pw.println(toHex(textAddr + i*4) + " " + (profile[i] & 0xffffffffL));
+        pw.flush();
+    }
+    
     // Debug functions
     // NOTE: This probably requires a jdk > 1.1, however, it is only used for debugging
     private java.util.HashMap sourceLineCache;
@@ -780,7 +810,14 @@ public class Interpreter extends UnixRuntime implements Cloneable {
         String image = argv[0];
         Interpreter emu = new Interpreter(image);
         java.lang.Runtime.getRuntime().addShutdownHook(new Thread(emu.new DebugShutdownHook()));
+        String profile = Platform.getProperty("nestedvm.profile");
+        if(profile != null) emu.enableProfile();
         int status = emu.run(argv);
+        if(profile != null) {
+            OutputStream os = new FileOutputStream(profile);
+            emu.writeProfile(os);
+            os.close();
+        }
         System.err.println("Exit status: " + status);
         System.exit(status);
     }
@@ -38,6 +38,12 @@ public class JavaSourceCompiler extends Compiler {
     
     protected void _go() throws Exn, IOException {
         if(singleFloat) throw new Exn("JavaSourceCompiler doesn't support singleFloat");
+        if(offHeap) throw new Exn("JavaSourceCompiler doesn't support offHeap");
+        if(functionMethods) throw new Exn("JavaSourceCompiler doesn't support functionMethods");
+        if(profile != null) throw new Exn("JavaSourceCompiler doesn't support profile");
+        if(textShards != 1) throw new Exn("JavaSourceCompiler doesn't support textShards");
+        if(dataResource) throw new Exn("JavaSourceCompiler doesn't support dataResource");
+        if(lazyText) throw new Exn("JavaSourceCompiler doesn't support lazyText");
         String packageName;
         String className;
         if (fullClassName.indexOf('.') != -1) {
@@ -122,7 +128,12 @@ public class JavaSourceCompiler extends Compiler {
         p("public " + className + "() {");
         indent++;
         p("super(" + pageSize + "," + totalPages + ");");
+        p("if(mapImage()) {");
+        indent++;
         pblock(inits);
+        p("imageLoaded();");
+        indent--;
+        p("}");
         indent--;
         p("}");
         p();
@@ -130,6 +141,7 @@ public class JavaSourceCompiler extends Compiler {
         p("protected int entryPoint() { return " + toHex(elf.header.entry) + "; }");
         p("protected int heapStart() { return " + toHex(highestAddr) + "; }");
         p("protected int gp() { return " + toHex(gp.addr) + "; }");
+        if(!onePage) p("protected boolean handlesWriteFaults() { return true; }");
         if(userInfo != null) {
             p("protected int userInfoBase() { return " + toHex(userInfo.addr) + "; }");            
             p("protected int userInfoSize() { return " + toHex(userInfo.size) + "; }");            
@@ -333,7 +345,7 @@ public class JavaSourceCompiler extends Compiler {
             }
             String varname =  "_data" + (++initDataCount);
             p("private static final int[] " + varname + " = decodeData(\"" + sb.toString() + "\"," + toHex(segSize/4) + ");");
-            inits.append(indents[2] + "initPages(" + varname +"," + toHex(addr) + "," + (readOnly?"true":"false") + ");\n");
+            inits.append(indents[3] + "initPages(" + varname +"," + toHex(addr) + "," + (readOnly?"true":"false") + ");\n");
             addr += segSize;
             size -= segSize;
         }
@@ -344,7 +356,7 @@ public class JavaSourceCompiler extends Compiler {
         if((addr&3)!=0) throw new Exn("BSS section on weird boundaries");
         size = (size+3)&~3;
         int count = size/4;
-        inits.append(indents[2] + "clearPages(" + toHex(addr) + "," + toHex(count) + ");\n");
+        inits.append(indents[3] + "clearPages(" + toHex(addr) + "," + toHex(count) + ");\n");
     }
 
     // True if the current code path is unreachable (any instruction with a case statement is reachable)
@@ -467,6 +479,7 @@ public class JavaSourceCompiler extends Compiler {
                         break;*/
                     case 33: // ADDU
                         p( "r"+rd+" = r"+rs+" + r"+rt+";");
+                        if(rd == SP) stackCheck();
                         break;
                     case 34: // SUB
                          throw new Exn("SUB (add with oveflow trap) not suported");
@@ -475,6 +488,7 @@ public class JavaSourceCompiler extends Compiler {
                         break;*/
                     case 35: // SUBU
                         p( "r"+rd+" = r"+rs+" - r"+rt+";");
+                        if(rd == SP) stackCheck();
                         break;
                     case 36: // AND
                         p( "r"+rd+" = r"+rs+" & r"+rt+";");
@@ -601,6 +615,7 @@ public class JavaSourceCompiler extends Compiler {
                 break;
             case 9: // ADDIU
                 p( "r"+rt+" = r"+rs+" + "+signedImmediate+";");
+                if(rt == SP && signedImmediate < 0) stackCheck();
                 break;
             case 10: // SLTI
                 p( "r"+rt+" = r"+rs+" < "+signedImmediate+" ? 1 : 0;");
@@ -896,13 +911,17 @@ public class JavaSourceCompiler extends Compiler {
     }
     
     // Helper functions for emitText
+    // onePage has no guard pages below the stack
+    private void stackCheck() {
+        if(onePage && nullPointerCheck) p("stackCheck(r29);");
+    }
     // NOTE: memWrite and memRead MUST discard the last two bits of addr
     private void memWrite(String addr, String target) {
         if(nullPointerCheck) p("nullPointerCheck(" + addr + ");");
         if(onePage)
             p("page[(" + addr + ")>>>2] = " + target + ";");
         else if(fastMem)
-            p("writePages[("+addr+")>>>"+pageShift+"][(("+addr+")>>>2)&"+toHex((pageSize>>2)-1)+"] = " + target + ";");
+            p("{ int[] wp = writePages[("+addr+")>>>"+pageShift+"]; if(wp == null) wp = writeFault("+addr+"); wp[(("+addr+")>>>2)&"+toHex((pageSize>>2)-1)+"] = " + target + "; }");
         else
             p("unsafeMemWrite(" + addr + "," + target + ");");
     }
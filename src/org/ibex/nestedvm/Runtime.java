@@ -10,6 +10,8 @@ package org.ibex.nestedvm;
 
 import org.ibex.nestedvm.util.*;
 import java.io.*;
+import java.nio.*;
+import java.util.*;
 
 public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     public static final String VERSION = "1.0";
@@ -21,16 +23,42 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     protected final int pageShift;
     /** Bottom of region of memory allocated to the stack */
     private final int stackBottom;
+    /** Lowest address this instance's stack may reach (checked by stackCheck()) */
+    private int stackLimit;
     
     /** Readable main memory pages */
     protected int[][] readPages;
     /** Writable main memory pages.
         If the page is writable writePages[x] == readPages[x]; if not writePages[x] == null. */
     protected int[][] writePages;
+    /** Off heap (direct, big endian) versions of readPages and writePages. They are used instead of
+        readPages and writePages (which are null) if offHeap() is true and follow the same rules. */
+    protected ByteBuffer[] readBuffers;
+    protected ByteBuffer[] writeBuffers;
+    /** Pages shared copy-on-write with another process (or null if the generated code can't handle write faults).
+        If cowPages[x] is set writePages[x] is null and readPages[x] must not be modified until writeFault() copies it */
+    private boolean[] cowPages;
+    /** Number of pages in the address space */
+    private final int totalPages;
+    /** All zero page shared copy-on-write by untouched heap, bss, and stack pages (see zeroFill()) */
+    private int[] zeroPage;
+    private ByteBuffer zeroBuffer;
     
     /** The address of the end of the heap */
     private int heapEnd;
     
+    /** The process whose address space and heap this call context uses (null if this isn't a call context)
+        @see Runtime#newCallContext(int) */
+    private Runtime memoryOwner;
+    /** The call context of each thread (see threadContext()) */
+    private ThreadLocal callContexts = new ThreadLocal();
+    /** Stack size for call contexts created by threadContext() */
+    private static final int CALL_CONTEXT_STACK_SIZE = 256*1024;
+    /** This call context's stack ({bottom, size}), null once it is released */
+    private int[] contextStack;
+    /** The stacks of released call contexts, newCallContext() hands them out again */
+    private Vector freeContextStacks;
+    
     /** Number of guard pages to keep between the stack and the heap */
     private static final int STACK_GUARD_PAGES = 4;
     
@@ -77,6 +105,9 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     FD[] fds; // package-private for UnixRuntime
     boolean closeOnExec[];
     
+    /** True if this process borrows its parent's address space (set by vfork() until the process exec()s or exits) */
+    boolean sharedMemory; // package-private for UnixRuntime
+    
     /** Pointer to a SecurityManager for this process */
     SecurityManager sm;
     public void setSecurityManager(SecurityManager sm) { this.sm = sm; }
@@ -106,6 +137,14 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     /** Subclasses should set the CPUState to the state held in <i>state</i> */
     protected abstract void setCPUState(CPUState state);
     
+    /** Subclasses should return true if a store to a page with a null writePages entry ends up in writeFault()
+        (rather than throwing a RuntimeException). This is required for copy-on-write pages */
+    protected boolean handlesWriteFaults() { return false; }
+    
+    /** Subclasses should return true if the process's memory should be kept outside the java heap
+        (in readBuffers/writeBuffers rather than readPages/writePages) */
+    protected boolean offHeap() { return false; }
+    
     /** True to enabled a few hacks to better support the win32 console */
     final static boolean win32Hacks;
     
@@ -119,20 +158,61 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     protected Object clone() throws CloneNotSupportedException {
         Runtime r = (Runtime) super.clone();
         r._byteBuf = null;
+        r.callStates = null;
+        r.callDepth = 0;
         r.startTime = 0;
         r.fds = new FD[OPEN_MAX];
         for(int i=0;i<OPEN_MAX;i++) if(fds[i] != null) r.fds[i] = fds[i].dup();
-        int totalPages = writePages.length;
-        r.readPages = new int[totalPages][];
-        r.writePages = new int[totalPages][];
-        for(int i=0;i<totalPages;i++) {
-            if(readPages[i] == null) continue;
-            if(writePages[i] == null) r.readPages[i] = readPages[i];
-            else r.readPages[i] = r.writePages[i] = (int[])writePages[i].clone();
+        r.callContexts = new ThreadLocal();
+        r.contextStack = null;
+        r.freeContextStacks = null;
+        // the reset point (and its references to the fds) belongs to this process
+        r.resetPages = null;
+        r.resetFDs = null;
+        // The clone uses the page tables as is (see UnixRuntime.sys_vfork())
+        if(sharedMemory) return r;
+        if(memoryOwner != null) {
+            r.heapEnd = memoryOwner.heapEnd;
+            r.memoryOwner = null;
+        }
+        Object[] rp = readBuffers != null ? (Object[]) readBuffers : readPages;
+        Object[] wp = readBuffers != null ? (Object[]) writeBuffers : writePages;
+        Object[] crp = (Object[]) rp.clone();
+        Object[] cwp = (Object[]) wp.clone();
+        if(cowPages != null) {
+            // Share the writable pages with the clone. Whichever one stores to a page first gets its own copy.
+            r.cowPages = new boolean[totalPages];
+            for(int i=0;i<totalPages;i++) {
+                if(rp[i] == null) continue;
+                if(wp[i] != null || cowPages[i]) {
+                    wp[i] = cwp[i] = null;
+                    cowPages[i] = r.cowPages[i] = true;
+                }
+            }
+        } else {
+            for(int i=0;i<totalPages;i++)
+                if(wp[i] != null) crp[i] = cwp[i] = copyPage(wp[i]);
+        }
+        if(readBuffers != null) {
+            r.readBuffers = (ByteBuffer[]) crp;
+            r.writeBuffers = (ByteBuffer[]) cwp;
+        } else {
+            r.readPages = (int[][]) crp;
+            r.writePages = (int[][]) cwp;
         }
         return r;
     }
     
+    private Object copyPage(Object page) {
+        if(page instanceof int[]) return ((int[])page).clone();
+        ByteBuffer b = newBuffer();
+        b.put(((ByteBuffer)page).duplicate());
+        b.clear();
+        return b;
+    }
+    
+    private ByteBuffer newBuffer() { return ByteBuffer.allocateDirect(1<<pageShift); }
+    
     protected Runtime(int pageSize, int totalPages) { this(pageSize, totalPages,false); }
     protected Runtime(int pageSize, int totalPages, boolean exec) {
         if(pageSize <= 0) throw new IllegalArgumentException("pageSize <= 0");
@@ -160,17 +240,24 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         }
         
         stackBottom = totalMemory - stackSize;
+        stackLimit = stackBottom;
         heapEnd = heapStart;
+        this.totalPages = totalPages;
         
-        readPages = new int[totalPages][];
-        writePages = new int[totalPages][];
+        if(totalPages > 1 && handlesWriteFaults()) cowPages = new boolean[totalPages];
         
+        if(offHeap()) {
+            if(totalPages == 1) throw new IllegalArgumentException("offHeap can't be used with totalPages == 1");
+            readBuffers = new ByteBuffer[totalPages];
+            writeBuffers = new ByteBuffer[totalPages];
+        } else {
+            readPages = new int[totalPages][];
+            writePages = new int[totalPages][];
+        }
         if(totalPages == 1) {
             readPages[0] = writePages[0] = new int[pageSize>>2];
         } else {
-            for(int i=(stackBottom >>> pageShift);i<writePages.length;i++) {
-                readPages[i] = writePages[i] = new int[pageSize>>2];
-            }
+            for(int i=(stackBottom >>> pageShift);i<totalPages;i++) zeroFill(i);
         }
 
         if(!exec) {
@@ -184,6 +271,73 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         }
     }
     
+    /** The pages set up by initPages() and clearPages() in the first instance of each class, keyed by the class */
+    private static final Map imageTemplates = new WeakHashMap();
+    
+    private static class Image {
+        final int pageShift;
+        final int totalPages;
+        final Object[] pages;
+        final boolean[] writable;
+        Image(int pageShift, int totalPages, Object[] pages, boolean[] writable) {
+            this.pageShift = pageShift; this.totalPages = totalPages; this.pages = pages; this.writable = writable;
+        }
+    }
+    
+    /** Called by the generated constructor before it loads the data segments. If an earlier instance of the same
+        class with the same page layout already loaded them this maps those pages (read-only pages are shared,
+        writable ones copy-on-write if possible) and returns false, in which case the initPages()/clearPages() calls
+        and imageLoaded() are skipped */
+    protected final boolean mapImage() {
+        if(totalPages == 1) return true;
+        Image image;
+        synchronized(imageTemplates) { image = (Image) imageTemplates.get(getClass()); }
+        // instances created with another pageSize or totalPages load the segments themselves
+        if(image == null || image.pageShift != pageShift || image.totalPages != totalPages) return true;
+        Object[] rp = readBuffers != null ? (Object[]) readBuffers : readPages;
+        Object[] wp = readBuffers != null ? (Object[]) writeBuffers : writePages;
+        for(int i=0;i<image.pages.length;i++) {
+            Object page = image.pages[i];
+            if(page == null) continue;
+            if(!image.writable[i]) {
+                rp[i] = page;
+            } else if(cowPages != null) {
+                rp[i] = page;
+                cowPages[i] = true;
+            } else {
+                rp[i] = wp[i] = copyPage(page);
+            }
+        }
+        return false;
+    }
+    
+    /** Called by the generated constructor once the data segments are loaded. Records the pages for mapImage() */
+    protected final void imageLoaded() {
+        if(totalPages == 1) return;
+        Object[] rp = readBuffers != null ? (Object[]) readBuffers : readPages;
+        Object[] wp = readBuffers != null ? (Object[]) writeBuffers : writePages;
+        int n = stackBottom >>> pageShift;
+        Object[] pages = new Object[n];
+        boolean[] writable = new boolean[n];
+        for(int i=0;i<n;i++) {
+            if(rp[i] == null) continue;
+            writable[i] = wp[i] != null || (cowPages != null && cowPages[i]);
+            if(!writable[i]) {
+                pages[i] = rp[i];
+            } else if(cowPages != null) {
+                // the template must never change, so this instance has to copy the page before writing to it too
+                pages[i] = rp[i];
+                wp[i] = null;
+                cowPages[i] = true;
+            } else {
+                pages[i] = copyPage(rp[i]);
+            }
+        }
+        synchronized(imageTemplates) {
+            if(imageTemplates.get(getClass()) == null) imageTemplates.put(getClass(),new Image(pageShift,totalPages,pages,writable));
+        }
+    }
+    
     /** Copy everything from <i>src</i> to <i>addr</i> initializing uninitialized pages if required. 
        Newly initalized pages will be marked read-only if <i>ro</i> is set */
     protected final void initPages(int[] src, int addr, boolean ro) {
@@ -194,17 +348,113 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int page = addr >>> pageShift;
             int start = (addr&pageMask)>>2;
             int elements = min(pageWords-start,src.length-i);
-            if(readPages[page]==null) {
-                initPage(page,ro);
-            } else if(!ro) {
-                if(writePages[page] == null) writePages[page] = readPages[page];
+            pageForInit(page,ro);
+            if(readBuffers != null) {
+                IntBuffer ib = readBuffers[page].asIntBuffer();
+                ib.position(start);
+                ib.put(src,i,elements);
+            } else {
+                System.arraycopy(src,i,readPages[page],start,elements);
             }
-            System.arraycopy(src,i,readPages[page],start,elements);
             i += elements;
             addr += elements*4;
         }
     }
     
+    // Makes sure page can be written to by initPages(). New pages are read-only if ro is set.
+    private void pageForInit(int page, boolean ro) {
+        unshare(page);
+        if(readBuffers != null) {
+            if(readBuffers[page]==null) {
+                ByteBuffer b = newBuffer();
+                readBuffers[page] = b;
+                writeBuffers[page] = ro ? null : b;
+            } else if(!ro) {
+                if(writeBuffers[page] == null) writeBuffers[page] = readBuffers[page];
+            }
+        } else if(readPages[page]==null) {
+            initPage(page,ro);
+        } else if(!ro) {
+            if(writePages[page] == null) writePages[page] = readPages[page];
+        }
+    }
+    
+    /** Loads the pages of the data segments the compiler wrote to the resource <i>name</i> (relative to this class)
+        with the dataResource option. Off heap runtimes map the pages from the resource if it is a file, so only the
+        pages the program touches are ever read. Writable pages are mapped copy-on-write if possible. */
+    protected final void loadDataResource(String name) {
+        int pageSize = 1<<pageShift;
+        ByteBuffer data = readBuffers != null ? mapResource(name) : null;
+        boolean mapped = data != null;
+        if(data == null) data = readDataResource(name);
+        if(data.getInt(0) != pageShift) throw new IllegalStateException("data resource " + name + " doesn't match the page size");
+        int count = data.getInt(4);
+        int offset = (8 + count*5 + pageSize - 1) & ~(pageSize - 1);
+        if(count < 0 || data.capacity() < offset + (long)count*pageSize) throw new IllegalStateException("data resource " + name + " is truncated");
+        
+        Object[] rp = readBuffers != null ? (Object[]) readBuffers : readPages;
+        Object[] wp = readBuffers != null ? (Object[]) writeBuffers : writePages;
+        for(int i=0;i<count;i++) {
+            int page = data.getInt(8+i*5);
+            boolean rw = data.get(8+i*5+4) != 0;
+            if(page < 0 || page >= totalPages) throw new IllegalStateException("bad page in data resource " + name);
+            ByteBuffer b = data.duplicate();
+            b.position(offset + i*pageSize);
+            b.limit(offset + (i+1)*pageSize);
+            ByteBuffer src = b.slice();
+            Object p;
+            if(mapped && rw && cowPages != null) {
+                cowPages[page] = true;
+                rp[page] = src;
+                continue;
+            } else if(mapped && !rw) {
+                p = src;
+            } else if(readBuffers != null) {
+                p = copyPage(src);
+            } else {
+                int[] a = new int[pageSize>>2];
+                src.asIntBuffer().get(a);
+                p = a;
+            }
+            rp[page] = p;
+            if(rw) wp[page] = p;
+        }
+    }
+    
+    // Maps the resource name if it is a plain file, null otherwise
+    private ByteBuffer mapResource(String name) {
+        java.net.URL u = getClass().getResource(name);
+        if(u == null || !u.getProtocol().equals("file")) return null;
+        try {
+            FileInputStream fis = new FileInputStream(new File(new java.net.URI(u.toString())));
+            try {
+                java.nio.channels.FileChannel ch = fis.getChannel();
+                return ch.map(java.nio.channels.FileChannel.MapMode.READ_ONLY,0,ch.size());
+            } finally {
+                fis.close();
+            }
+        } catch(Exception e) {
+            return null; // just read it
+        }
+    }
+    
+    private ByteBuffer readDataResource(String name) {
+        InputStream is = getClass().getResourceAsStream(name);
+        if(is == null) throw new IllegalStateException("data resource " + name + " not found");
+        try {
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                for(int n;(n = is.read(buf)) != -1;) bos.write(buf,0,n);
+                return ByteBuffer.wrap(bos.toByteArray());
+            } finally {
+                is.close();
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException("couldn't read data resource " + name + ": " + e);
+        }
+    }
+    
     /** Initialize <i>words</i> of pages starting at <i>addr</i> to 0 */
     protected final void clearPages(int addr, int words) {
         int pageWords = (1<<pageShift)>>>2;
@@ -214,9 +464,20 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int page = addr >>> pageShift;
             int start = (addr&pageMask)>>2;
             int elements = min(pageWords-start,words-i);
-            if(readPages[page]==null) {
+            if(elements == pageWords && cowPages != null) {
+                zeroFill(page);
+            } else if(readBuffers != null) {
+                unshare(page);
+                if(readBuffers[page]==null) {
+                    readBuffers[page] = writeBuffers[page] = newBuffer();
+                } else {
+                    if(writeBuffers[page] == null) writeBuffers[page] = readBuffers[page];
+                    for(int j=start;j<start+elements;j++) writeBuffers[page].putInt(j<<2,0);
+                }
+            } else if(readPages[page]==null) {
                 readPages[page] = writePages[page] = new int[pageWords];
             } else {
+                unshare(page);
                 if(writePages[page] == null) writePages[page] = readPages[page];
                 for(int j=start;j<start+elements;j++) writePages[page][j] = 0;
             }
@@ -225,9 +486,52 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         }
     }
     
+    /** Maps <i>page</i> as a demand-zero page. Without write fault support the page is allocated right away,
+        otherwise it shares the zero page until the first store to it (see writeFault()) */
+    private final void zeroFill(int page) {
+        if(readBuffers != null) {
+            if(cowPages == null) { readBuffers[page] = writeBuffers[page] = newBuffer(); return; }
+            if(zeroBuffer == null) zeroBuffer = newBuffer();
+            readBuffers[page] = zeroBuffer;
+            writeBuffers[page] = null;
+        } else {
+            if(cowPages == null) { readPages[page] = writePages[page] = new int[(1<<pageShift)>>>2]; return; }
+            if(zeroPage == null) zeroPage = new int[(1<<pageShift)>>>2];
+            readPages[page] = zeroPage;
+            writePages[page] = null;
+        }
+        cowPages[page] = true;
+    }
+    
+    /** Gives <i>page</i> its own copy if it is shared copy-on-write so it can be modified in place */
+    private final void unshare(int page) {
+        if(cowPages == null || !cowPages[page]) return;
+        try {
+            if(readBuffers != null) writeBufferFault(page << pageShift);
+            else writeFault(page << pageShift);
+        } catch(WriteFaultException e) {
+            throw new Error("should never happen: " + e);
+        }
+    }
+    
+    /** Gives every page shared copy-on-write with data in it (not the zero page) its own copy. Call contexts
+        read pages without locking, so pages with data mustn't be copied after they start (see newCallContext()). */
+    private final void unshareData() {
+        if(cowPages == null) return;
+        for(int i=0;i<totalPages;i++) {
+            if(!cowPages[i]) continue;
+            if(readBuffers != null ? readBuffers[i] != zeroBuffer : readPages[i] != zeroPage) unshare(i);
+        }
+    }
+    
+    /** Below this many words copyin/copyout pack words by hand, the two buffer objects of the bulk copy
+        cost more than they save (they break even around 16-32 words on Hotspot) */
+    private static final int BULK_COPY_WORDS = 32;
+    
     /** Copies <i>length</i> bytes from the processes memory space starting at
         <i>addr</i> INTO a java byte array <i>a</i> */
     public final void copyin(int addr, byte[] buf, int count) throws ReadFaultException {
+        if(readBuffers != null) { copyinBuffers(addr,buf,count); return; }
         int pageWords = (1<<pageShift)>>>2;
         int pageMask = pageWords - 1;
 
@@ -250,10 +554,16 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
                 if(page == null) throw new ReadFaultException(a<<2);
                 int index = a&pageMask;
                 int n = min(c,pageWords-index);
-                for(int i=0;i<n;i++,x+=4) {
-                    int word = page[index+i];
-                    buf[x+0] = (byte)((word>>>24)&0xff); buf[x+1] = (byte)((word>>>16)&0xff);
-                    buf[x+2] = (byte)((word>>> 8)&0xff); buf[x+3] = (byte)((word>>> 0)&0xff);                        
+                if(n < BULK_COPY_WORDS) {
+                    for(int i=0;i<n;i++,x+=4) {
+                        int word = page[index+i];
+                        buf[x+0] = (byte)((word>>>24)&0xff); buf[x+1] = (byte)((word>>>16)&0xff);
+                        buf[x+2] = (byte)((word>>> 8)&0xff); buf[x+3] = (byte)((word>>> 0)&0xff);                        
+                    }
+                } else {
+                    // big endian view of the aligned middle section, avoids splitting up each word by hand
+                    ByteBuffer.wrap(buf,x,n<<2).asIntBuffer().put(page,index,n);
+                    x += n<<2;
                 }
                 a += n; c -=n;
             }
@@ -272,6 +582,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     /** Copies <i>length</i> bytes OUT OF the java array <i>a</i> into the processes memory
         space at <i>addr</i> */
     public final void copyout(byte[] buf, int addr, int count) throws FaultException {
+        if(readBuffers != null) { copyoutBuffers(buf,addr,count); return; }
         int pageWords = (1<<pageShift)>>>2;
         int pageWordMask = pageWords - 1;
         
@@ -293,11 +604,16 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int a = addr>>>2;
             while(c != 0) {
                 int[] page = writePages[a >>> (pageShift-2)];
-                if(page == null) throw new WriteFaultException(a<<2);
+                if(page == null) page = writeFault(a<<2);
                 int index = a&pageWordMask;
                 int n = min(c,pageWords-index);
-                for(int i=0;i<n;i++,x+=4)
-                    page[index+i] = ((buf[x+0]&0xff)<<24)|((buf[x+1]&0xff)<<16)|((buf[x+2]&0xff)<<8)|((buf[x+3]&0xff)<<0);
+                if(n < BULK_COPY_WORDS) {
+                    for(int i=0;i<n;i++,x+=4)
+                        page[index+i] = ((buf[x+0]&0xff)<<24)|((buf[x+1]&0xff)<<16)|((buf[x+2]&0xff)<<8)|((buf[x+3]&0xff)<<0);
+                } else {
+                    ByteBuffer.wrap(buf,x,n<<2).asIntBuffer().get(page,index,n);
+                    x += n<<2;
+                }
                 a += n; c -=n;
             }
             addr = a<<2; count&=3;
@@ -315,6 +631,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     }
     
     public final void memcpy(int dst, int src, int count) throws FaultException {
+        if(readBuffers != null) { memcpyBuffers(dst,src,count); return; }
         int pageWords = (1<<pageShift)>>>2;
         int pageWordMask = pageWords - 1;
         if((dst&3) == 0 && (src&3)==0) {
@@ -326,7 +643,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
                     int[] srcPage = readPages[s>>>(pageShift-2)];
                     if(srcPage == null) throw new ReadFaultException(s<<2);
                     int[] dstPage = writePages[d>>>(pageShift-2)];
-                    if(dstPage == null) throw new WriteFaultException(d<<2);
+                    if(dstPage == null) dstPage = writeFault(d<<2);
                     int srcIndex = s&pageWordMask;
                     int dstIndex = d&pageWordMask;
                     int n = min(c,pageWords-max(srcIndex,dstIndex));
@@ -356,6 +673,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     }
     
     public final void memset(int addr, int ch, int count) throws FaultException {
+        if(readBuffers != null) { memsetBuffers(addr,ch,count); return; }
         int pageWords = (1<<pageShift)>>>2;
         int pageWordMask = pageWords - 1;
         
@@ -374,8 +692,8 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int c = count>>2;
             int a = addr>>>2;
             while(c != 0) {
-                int[] page = readPages[a>>>(pageShift-2)];
-                if(page == null) throw new WriteFaultException(a<<2);
+                int[] page = writePages[a>>>(pageShift-2)];
+                if(page == null) page = writeFault(a<<2);
                 int index = a&pageWordMask;
                 int n = min(c,pageWords-index);
                 /* Arrays.fill(page,index,index+n,fourBytes);*/
@@ -395,6 +713,87 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         }
     }
     
+    // Off heap versions of copyin, copyout, memcpy, and memset. Pages are big endian so no conversion is needed.
+    
+    private final ByteBuffer readBuffer(int addr) throws ReadFaultException {
+        int page = addr >>> pageShift;
+        ByteBuffer b = page < totalPages ? readBuffers[page] : null;
+        if(b == null) throw new ReadFaultException(addr);
+        return b.duplicate();
+    }
+    
+    private final ByteBuffer writeBuffer(int addr) throws WriteFaultException {
+        int page = addr >>> pageShift;
+        if(page >= totalPages) throw new WriteFaultException(addr);
+        ByteBuffer b = writeBuffers[page];
+        if(b == null) b = writeBufferFault(addr);
+        return b.duplicate();
+    }
+    
+    private final void copyinBuffers(int addr, byte[] buf, int count) throws ReadFaultException {
+        int pageMask = (1<<pageShift) - 1;
+        for(int x=0;count > 0;) {
+            int n = min(count,pageMask+1-(addr&pageMask));
+            ByteBuffer b = readBuffer(addr);
+            b.position(addr&pageMask);
+            b.get(buf,x,n);
+            addr += n; x += n; count -= n;
+        }
+    }
+    
+    private final void copyoutBuffers(byte[] buf, int addr, int count) throws WriteFaultException {
+        int pageMask = (1<<pageShift) - 1;
+        for(int x=0;count > 0;) {
+            int n = min(count,pageMask+1-(addr&pageMask));
+            ByteBuffer b = writeBuffer(addr);
+            b.position(addr&pageMask);
+            b.put(buf,x,n);
+            addr += n; x += n; count -= n;
+        }
+    }
+    
+    /** Reads up to <i>count</i> bytes from <i>fd</i> directly into the off heap pages at <i>addr</i>.
+        Returns -1 if the FD doesn't support reading into a ByteBuffer. */
+    private final int readBuffers(FD fd, int addr, int count) throws FaultException, ErrnoException {
+        int pageMask = (1<<pageShift) - 1;
+        int total = 0;
+        while(count > 0) {
+            int n = min(count,pageMask+1-(addr&pageMask));
+            ByteBuffer b = writeBuffer(addr);
+            b.position(addr&pageMask);
+            b.limit((addr&pageMask)+n);
+            int r = fd.read(b);
+            if(r < 0) return total == 0 ? -1 : total;
+            addr += r; count -= r; total += r;
+            if(r < n) break;
+        }
+        return total;
+    }
+    
+    private final void memcpyBuffers(int dst, int src, int count) throws FaultException {
+        int pageMask = (1<<pageShift) - 1;
+        while(count > 0) {
+            int n = min(count,pageMask+1-max(src&pageMask,dst&pageMask));
+            ByteBuffer s = readBuffer(src);
+            ByteBuffer d = writeBuffer(dst);
+            s.position(src&pageMask);
+            s.limit((src&pageMask)+n);
+            d.position(dst&pageMask);
+            d.put(s);
+            src += n; dst += n; count -= n;
+        }
+    }
+    
+    private final void memsetBuffers(int addr, int ch, int count) throws WriteFaultException {
+        int pageMask = (1<<pageShift) - 1;
+        while(count > 0) {
+            int n = min(count,pageMask+1-(addr&pageMask));
+            ByteBuffer b = writeBuffer(addr);
+            for(int i=addr&pageMask;i<(addr&pageMask)+n;i++) b.put(i,(byte)ch);
+            addr += n; count -= n;
+        }
+    }
+    
     /** Read a word from the processes memory at <i>addr</i> */
     public final int memRead(int addr) throws ReadFaultException  {
         if((addr & 3) != 0) throw new ReadFaultException(addr);
@@ -405,9 +804,10 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         int page = addr >>> pageShift;
         int entry = (addr&(1<<pageShift) - 1)>>2;
         try {
+            if(readBuffers != null) return readBuffers[page].getInt(entry<<2);
             return readPages[page][entry];
         } catch(ArrayIndexOutOfBoundsException e) {
-            if(page < 0 || page >= readPages.length) throw new ReadFaultException(addr);
+            if(page < 0 || page >= totalPages) throw new ReadFaultException(addr);
             throw e; // should never happen
         } catch(NullPointerException e) {
             throw new ReadFaultException(addr);
@@ -424,12 +824,48 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         int page = addr >>> pageShift;
         int entry = (addr&(1<<pageShift) - 1)>>2;
         try {
-            writePages[page][entry] = value;
+            if(readBuffers != null) writeBuffers[page].putInt(entry<<2,value);
+            else writePages[page][entry] = value;
         } catch(ArrayIndexOutOfBoundsException e) {
-            if(page < 0 || page >= writePages.length) throw new WriteFaultException(addr);
+            if(page < 0 || page >= totalPages) throw new WriteFaultException(addr);
             throw e; // should never happen
         } catch(NullPointerException e) {
-            throw new WriteFaultException(addr);
+            if(readBuffers != null) writeBufferFault(addr).putInt(entry<<2,value);
+            else writeFault(addr)[entry] = value;
+        }
+    }
+    
+    /** Called when a store hits a page with no writable mapping. If the page is shared copy-on-write
+        this process gets its own copy of it (which is returned), otherwise a WriteFaultException is thrown */
+    protected final int[] writeFault(int addr) throws WriteFaultException {
+        int page = addr >>> pageShift;
+        if(cowPages == null || page >= cowPages.length) throw new WriteFaultException(addr);
+        // call contexts share the page tables
+        synchronized(heapLock()) {
+            if(!cowPages[page]) {
+                if(writePages[page] == null) throw new WriteFaultException(addr);
+                return writePages[page];
+            }
+            int[] buf = (int[]) readPages[page].clone();
+            readPages[page] = writePages[page] = buf;
+            cowPages[page] = false;
+            return buf;
+        }
+    }
+    
+    /** writeFault() for off heap pages */
+    protected final ByteBuffer writeBufferFault(int addr) throws WriteFaultException {
+        int page = addr >>> pageShift;
+        if(cowPages == null || page >= cowPages.length) throw new WriteFaultException(addr);
+        synchronized(heapLock()) {
+            if(!cowPages[page]) {
+                if(writeBuffers[page] == null) throw new WriteFaultException(addr);
+                return writeBuffers[page];
+            }
+            ByteBuffer buf = (ByteBuffer) copyPage(readBuffers[page]);
+            readBuffers[page] = writeBuffers[page] = buf;
+            cowPages[page] = false;
+            return buf;
         }
     }
     
@@ -505,16 +941,44 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         try {
             _execute();
         } catch(FaultException e) {
+            compiledLocation(e);
             if(STDERR_DIAG) e.printStackTrace();
             exit(128+11,true); // SIGSEGV
             exitException = e;
         } catch(ExecutionException e) {
+            compiledLocation(e);
             if(STDERR_DIAG) e.printStackTrace();
             exit(128+4,true); // SIGILL
             exitException = e;
+        } catch(NoClassDefFoundError e) {
+            // part of the compiled text couldn't be loaded (like a lazyText helper class that failed to compile)
+            ExecutionException ee = new ExecutionException("Couldn't load compiled code: " + e.getMessage());
+            compiledLocation(ee);
+            if(STDERR_DIAG) e.printStackTrace();
+            exit(128+4,true); // SIGILL
+            exitException = ee;
         }
     }
     
+    /** Compiled code only keeps the pc field up to date where something looks at it, so the best location we have
+        for a fault in it is the run_ method (named after its first address) it came from. That needs a stack trace;
+        without one (-XX:-StackTraceInThrowable) we fall back to the last pc the code stored, which is somewhere
+        before the fault in the same function. */
+    private void compiledLocation(ExecutionException e) {
+        if(e.location != ExecutionException.UNKNOWN_LOCATION) return;
+        Throwable t = e instanceof FaultException && ((FaultException)e).cause != null ? ((FaultException)e).cause : e;
+        StackTraceElement[] trace = t.getStackTrace();
+        for(int i=0;i<trace.length;i++) {
+            if(trace[i].getMethodName().startsWith("run_")) {
+                e.setLocation(trace[i].getClassName() + "." + trace[i].getMethodName());
+                return;
+            }
+        }
+        CPUState state = new CPUState();
+        getCPUState(state);
+        e.setLocation("(after " + toHex(state.pc) + ")");
+    }
+    
     /** Executes the process until the PAUSE syscall is invoked or the process exits. Returns true if the process exited. */
     public final boolean execute()  {
         if(state != PAUSED) throw new IllegalStateException("execute() called in inappropriate state");
@@ -558,7 +1022,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         if(state != STOPPED) throw new IllegalStateException("start() called in inappropriate state");
         if(args == null) args = new String[]{getClass().getName()};
         
-        sp = top = writePages.length*(1<<pageShift);
+        sp = top = totalPages*(1<<pageShift);
         try {
             sp = argsAddr = addStringArray(args,sp);
             sp = envAddr = addStringArray(createEnv(environ),sp);
@@ -573,7 +1037,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         if(heapEnd == 0) {
             heapEnd = heapStart();
             if(heapEnd == 0) throw new Error("heapEnd == 0");
-            int pageSize = writePages.length == 1 ? 4096 : (1<<pageShift);
+            int pageSize = totalPages == 1 ? 4096 : (1<<pageShift);
             heapEnd = (heapEnd + pageSize - 1) & ~(pageSize-1);
         }
 
@@ -596,9 +1060,382 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         exit(0, false);
     }
 
+    /** Hands this process's memory, heap, and cpu state over to <i>r</i>, a new (STOPPED) runtime with the same memory
+        layout, which is PAUSED afterwards and carries on where this one left off. Returns false (and changes nothing) if
+        the layouts differ or the memory can't be handed over right now. Used by UnixRuntime to move a process from the
+        Interpreter to the compiled version of its binary. */
+    final boolean moveTo(Runtime r) {
+        if(r.state != STOPPED) throw new IllegalStateException("moveTo() target isn't a new runtime");
+        if(r.pageShift != pageShift || r.totalPages != totalPages || totalPages == 1 || r.stackBottom != stackBottom) return false;
+        if((r.readBuffers != null) != (readBuffers != null) || (r.cowPages != null) != (cowPages != null)) return false;
+        if(memoryOwner != null || sharedMemory || callDepth != 0) return false;
+        CPUState cpu = new CPUState();
+        getCPUState(cpu);
+        r.readPages = readPages;
+        r.writePages = writePages;
+        r.readBuffers = readBuffers;
+        r.writeBuffers = writeBuffers;
+        r.cowPages = cowPages;
+        r.heapEnd = heapEnd;
+        r.startTime = startTime;
+        r.setCPUState(cpu);
+        r.state = PAUSED;
+        readPages = writePages = null;
+        readBuffers = writeBuffers = null;
+        cowPages = null;
+        return true;
+    }
+    
     /** Hook for subclasses to do their own startup */
     void _started() {  }
     
+    // Process snapshots
+    
+    private static final int SNAPSHOT_MAGIC = 0x4e56534e; // NVSN
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_ZERO_PAGE = 0;
+    private static final int SNAPSHOT_RO_PAGE = 1;
+    private static final int SNAPSHOT_RW_PAGE = 2;
+    private static final int SNAPSHOT_ZERO_RO_PAGE = 3;
+    
+    /** Writes a snapshot of this PAUSED process to <i>os</i>. The snapshot contains the process's memory, cpu state,
+        heap end, and open file descriptors (path, flags, and position only - descriptors without a path can't be
+        reopened). The data of all zero pages is omitted, only whether they are writable is kept. The page data starts
+        on a page boundary so restore(File) can map it.
+        @see Runtime#restore(InputStream) */
+    public final void snapshot(OutputStream os) throws IOException {
+        if(state != PAUSED) throw new IllegalStateException("snapshot() called in inappropriate state");
+        if(totalPages == 1) throw new IllegalStateException("snapshots require totalPages > 1");
+        int pageSize = 1<<pageShift;
+        Object[] rp = readBuffers != null ? (Object[]) readBuffers : readPages;
+        Object[] wp = readBuffers != null ? (Object[]) writeBuffers : writePages;
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bos);
+        header.writeUTF(getClass().getName());
+        header.writeInt(pageShift);
+        header.writeInt(totalPages);
+        header.writeInt(heapEnd);
+        CPUState cpu = new CPUState();
+        getCPUState(cpu);
+        for(int i=0;i<32;i++) header.writeInt(cpu.r[i]);
+        for(int i=0;i<32;i++) header.writeInt(cpu.f[i]);
+        header.writeInt(cpu.hi);
+        header.writeInt(cpu.lo);
+        header.writeInt(cpu.fcsr);
+        header.writeInt(cpu.pc);
+        for(int i=0;i<OPEN_MAX;i++) {
+            FD fd = fds[i];
+            if(fd == null) continue;
+            int pos;
+            try { pos = fd.seek(0,SEEK_CUR); } catch(ErrnoException e) { pos = -1; }
+            String path = fd.getNormalizedPath();
+            header.writeInt(i);
+            header.writeBoolean(closeOnExec[i]);
+            header.writeInt(fd.flags());
+            header.writeInt(pos);
+            header.writeUTF(path == null ? "" : path);
+        }
+        header.writeInt(-1);
+        _snapshot(header);
+        
+        int count = 0;
+        for(int i=0;i<totalPages;i++) if(rp[i] != null) count++;
+        header.writeInt(count);
+        byte[][] data = new byte[totalPages][];
+        for(int i=0;i<totalPages;i++) {
+            if(rp[i] == null) continue;
+            data[i] = pageBytes(rp[i]);
+            boolean zero = true;
+            for(int j=0;j<pageSize && zero;j++) zero = data[i][j] == 0;
+            if(zero) data[i] = null;
+            boolean rw = wp[i] != null || (cowPages != null && cowPages[i]);
+            header.writeInt(i);
+            header.writeByte(zero ? (rw ? SNAPSHOT_ZERO_PAGE : SNAPSHOT_ZERO_RO_PAGE) : rw ? SNAPSHOT_RW_PAGE : SNAPSHOT_RO_PAGE);
+        }
+        header.flush();
+        
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(SNAPSHOT_MAGIC);
+        dos.writeInt(SNAPSHOT_VERSION);
+        dos.writeInt(bos.size());
+        bos.writeTo(dos);
+        dos.write(new byte[snapshotDataOffset(bos.size()) - 12 - bos.size()]);
+        for(int i=0;i<totalPages;i++) if(data[i] != null) dos.write(data[i]);
+        dos.flush();
+    }
+    
+    /** Returns a snapshot of this PAUSED process
+        @see Runtime#snapshot(OutputStream) */
+    public final byte[] snapshot() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            snapshot(bos);
+        } catch(IOException e) {
+            throw new Error("should never happen: " + e);
+        }
+        return bos.toByteArray();
+    }
+    
+    private int snapshotDataOffset(int headerSize) {
+        int pageSize = 1<<pageShift;
+        return (12 + headerSize + pageSize - 1) & ~(pageSize - 1);
+    }
+    
+    private byte[] pageBytes(Object page) {
+        byte[] buf = new byte[1<<pageShift];
+        if(page instanceof int[]) ByteBuffer.wrap(buf).asIntBuffer().put((int[])page);
+        else ((ByteBuffer)page).duplicate().get(buf);
+        return buf;
+    }
+    
+    /** Restores a snapshot created by snapshot() into this process. The process must be a new (STOPPED) instance of
+        the same class. It is PAUSED afterwards and continues where the snapshotted process left off once execute() is
+        called. File descriptors the process already has open (like stdin, stdout, and stderr) are kept, others are
+        reopened by path if possible. */
+    public final void restore(InputStream is) throws IOException { restore(is,null); }
+    
+    public final void restore(byte[] snapshot) throws IOException { restore(new ByteArrayInputStream(snapshot)); }
+    
+    /** Restores a snapshot from a file. If the process uses off heap memory the pages are mapped from the file rather than
+        read (the file isn't modified, written pages are copied first)
+        @see Runtime#restore(InputStream) */
+    public final void restore(File f) throws IOException {
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            restore(new BufferedInputStream(fis),readBuffers != null ? fis.getChannel() : null);
+        } finally {
+            fis.close();
+        }
+    }
+    
+    private void restore(InputStream is, java.nio.channels.FileChannel mapFrom) throws IOException {
+        if(state != STOPPED) throw new IllegalStateException("restore() called in inappropriate state");
+        if(totalPages == 1) throw new IllegalStateException("snapshots require totalPages > 1");
+        int pageSize = 1<<pageShift;
+        DataInputStream dis = new DataInputStream(is);
+        if(dis.readInt() != SNAPSHOT_MAGIC) throw new IOException("not a snapshot");
+        if(dis.readInt() != SNAPSHOT_VERSION) throw new IOException("unsupported snapshot version");
+        int headerSize = dis.readInt();
+        if(!dis.readUTF().equals(getClass().getName()) || dis.readInt() != pageShift || dis.readInt() != totalPages)
+            throw new IOException("snapshot doesn't match this runtime");
+        
+        int heapEnd = dis.readInt();
+        CPUState cpu = new CPUState();
+        for(int i=0;i<32;i++) cpu.r[i] = dis.readInt();
+        for(int i=0;i<32;i++) cpu.f[i] = dis.readInt();
+        cpu.hi = dis.readInt();
+        cpu.lo = dis.readInt();
+        cpu.fcsr = dis.readInt();
+        cpu.pc = dis.readInt();
+        
+        boolean[] open = new boolean[OPEN_MAX];
+        for(int fdn = dis.readInt();fdn != -1;fdn = dis.readInt()) {
+            boolean coe = dis.readBoolean();
+            int flags = dis.readInt();
+            int pos = dis.readInt();
+            String path = dis.readUTF();
+            if(fdn < 0 || fdn >= OPEN_MAX) throw new IOException("bad fd in snapshot");
+            open[fdn] = true;
+            closeOnExec[fdn] = coe;
+            if(fds[fdn] != null || path.length() == 0) continue;
+            try {
+                FD fd = _open(path,flags&~(O_CREAT|O_TRUNC|O_EXCL),0);
+                if(fd == null) continue;
+                if(pos > 0) fd.seek(pos,SEEK_SET);
+                fds[fdn] = fd;
+            } catch(ErrnoException e) {
+                if(STDERR_DIAG) System.err.println("WARNING: Couldn't reopen " + path + " while restoring a snapshot: " + e);
+            }
+        }
+        for(int i=0;i<OPEN_MAX;i++) if(!open[i]) closeFD(i);
+        _restore(dis);
+        
+        int count = dis.readInt();
+        int[] pages = new int[count];
+        byte[] kinds = new byte[count];
+        for(int i=0;i<count;i++) {
+            pages[i] = dis.readInt();
+            kinds[i] = dis.readByte();
+            if(pages[i] < 0 || pages[i] >= totalPages) throw new IOException("bad page in snapshot");
+        }
+        dis.skipBytes(snapshotDataOffset(headerSize) - 12 - headerSize);
+        
+        Object[] rp = readBuffers != null ? (Object[]) readBuffers : readPages;
+        Object[] wp = readBuffers != null ? (Object[]) writeBuffers : writePages;
+        for(int i=0;i<totalPages;i++) {
+            rp[i] = wp[i] = null;
+            if(cowPages != null) cowPages[i] = false;
+        }
+        
+        long offset = snapshotDataOffset(headerSize);
+        int dataPages = 0;
+        for(int i=0;i<count;i++) if(kinds[i] != SNAPSHOT_ZERO_PAGE && kinds[i] != SNAPSHOT_ZERO_RO_PAGE) dataPages++;
+        ByteBuffer region = null;
+        byte[] buf = new byte[pageSize];
+        for(int i=0;i<count;i++) {
+            int page = pages[i];
+            if(kinds[i] == SNAPSHOT_ZERO_PAGE) { zeroFill(page); continue; }
+            if(kinds[i] == SNAPSHOT_ZERO_RO_PAGE) {
+                // read-only pages are never written, they can all share the zero page
+                if(readBuffers != null) {
+                    if(zeroBuffer == null) zeroBuffer = newBuffer();
+                    rp[page] = zeroBuffer;
+                } else {
+                    if(zeroPage == null) zeroPage = new int[(1<<pageShift)>>>2];
+                    rp[page] = zeroPage;
+                }
+                continue;
+            }
+            boolean rw = kinds[i] == SNAPSHOT_RW_PAGE;
+            Object p;
+            if(mapFrom != null) {
+                // map the page data in chunks of at most 1gb
+                if(region == null || !region.hasRemaining()) {
+                    int n = min(dataPages,(1<<30)>>>pageShift);
+                    region = mapFrom.map(java.nio.channels.FileChannel.MapMode.READ_ONLY,offset,(long)n<<pageShift);
+                    offset += (long)n<<pageShift;
+                    dataPages -= n;
+                }
+                region.limit(region.position() + pageSize);
+                p = region.slice();
+                region.position(region.limit());
+                region.limit(region.capacity());
+                // mapped pages are read only, writable ones are copied on the first store (or right away)
+                if(rw && cowPages == null) {
+                    p = copyPage(p);
+                    wp[page] = p;
+                } else if(rw) {
+                    cowPages[page] = true;
+                }
+                rp[page] = p;
+                continue;
+            }
+            dis.readFully(buf);
+            if(readBuffers != null) {
+                ByteBuffer b = newBuffer();
+                b.put(buf);
+                b.clear();
+                p = b;
+            } else {
+                int[] a = new int[pageSize>>2];
+                ByteBuffer.wrap(buf).asIntBuffer().get(a);
+                p = a;
+            }
+            rp[page] = p;
+            if(rw) wp[page] = p;
+        }
+        
+        this.heapEnd = heapEnd;
+        setCPUState(cpu);
+        state = PAUSED;
+        _started();
+    }
+    
+    /** Hooks for subclasses to save and restore their own state in snapshots */
+    void _snapshot(DataOutputStream dos) throws IOException { }
+    void _restore(DataInputStream dis) throws IOException { }
+    
+    // Reset points
+    
+    /** The pages at the reset point (writable ones are shared copy-on-write with the live page tables if possible) */
+    private Object[] resetPages;
+    private boolean[] resetWritable;
+    private CPUState resetCPUState;
+    private int resetHeapEnd;
+    private FD[] resetFDs; // dup()ed so they stay open if the process closes them
+    private int[] resetFDPositions; // the offsets of the seekable ones, -1 for the others
+    private boolean[] resetCloseOnExec;
+    
+    /** Records the current state of this PAUSED process so reset() can go back to it. This is usually done once
+        the program has finished its initialization and paused, before the first call().
+        @see RuntimePool */
+    public final void setResetPoint() {
+        if(state != PAUSED) throw new IllegalStateException("setResetPoint() called in inappropriate state");
+        Object[] rp = readBuffers != null ? (Object[]) readBuffers : readPages;
+        Object[] wp = readBuffers != null ? (Object[]) writeBuffers : writePages;
+        resetPages = new Object[totalPages];
+        resetWritable = new boolean[totalPages];
+        for(int i=0;i<totalPages;i++) {
+            if(rp[i] == null) continue;
+            resetWritable[i] = wp[i] != null || (cowPages != null && cowPages[i]);
+            if(!resetWritable[i]) {
+                resetPages[i] = rp[i];
+            } else if(cowPages != null) {
+                // every page written from now on gets copied first, so the dirty ones are the ones that were replaced
+                resetPages[i] = rp[i];
+                wp[i] = null;
+                cowPages[i] = true;
+            } else {
+                resetPages[i] = copyPage(rp[i]);
+            }
+        }
+        resetCPUState = new CPUState();
+        getCPUState(resetCPUState);
+        resetHeapEnd = heapEnd;
+        releaseResetFDs();
+        resetFDs = new FD[OPEN_MAX];
+        resetFDPositions = new int[OPEN_MAX];
+        resetCloseOnExec = (boolean[]) closeOnExec.clone();
+        for(int i=0;i<OPEN_MAX;i++) {
+            resetFDPositions[i] = -1;
+            if(fds[i] == null) continue;
+            resetFDs[i] = fds[i].dup();
+            if(fds[i] instanceof SeekableFD) {
+                try { resetFDPositions[i] = ((SeekableFD)fds[i]).seekable().pos(); } catch(IOException e) { }
+            }
+        }
+    }
+    
+    private void releaseResetFDs() {
+        if(resetFDs == null) return;
+        for(int i=0;i<OPEN_MAX;i++) if(resetFDs[i] != null) resetFDs[i].close();
+        resetFDs = null;
+    }
+    
+    /** Puts this PAUSED process back in the state it was in when setResetPoint() was called. If the runtime handles
+        write faults only the pages written since then are touched. File descriptors are put back the way they
+        were: ones opened since the reset point are closed, ones closed since then are reopened, and files go back
+        to their offsets. */
+    public final void reset() {
+        if(resetPages == null) throw new IllegalStateException("reset() called without a reset point");
+        if(state != PAUSED) throw new IllegalStateException("reset() called in inappropriate state");
+        Object[] rp = readBuffers != null ? (Object[]) readBuffers : readPages;
+        Object[] wp = readBuffers != null ? (Object[]) writeBuffers : writePages;
+        for(int i=0;i<totalPages;i++) {
+            Object page = resetPages[i];
+            if(cowPages == null && page != null && resetWritable[i]) {
+                // no dirty page tracking, copy back the whole page
+                if(wp[i] == null) {
+                    rp[i] = wp[i] = copyPage(page);
+                } else if(readBuffers != null) {
+                    writeBuffers[i].duplicate().put(((ByteBuffer)page).duplicate());
+                } else {
+                    System.arraycopy(page,0,writePages[i],0,writePages[i].length);
+                }
+                continue;
+            }
+            if(rp[i] == page && wp[i] == null) continue;
+            rp[i] = page;
+            wp[i] = null;
+            if(cowPages != null) cowPages[i] = page != null && resetWritable[i];
+        }
+        for(int i=0;i<OPEN_MAX;i++) {
+            if(fds[i] != resetFDs[i]) {
+                if(fds[i] != null) closeFD(i);
+                if(resetFDs[i] != null) fds[i] = resetFDs[i].dup();
+            }
+            if(resetFDPositions[i] != -1) {
+                try { ((SeekableFD)fds[i]).seekable().seek(resetFDPositions[i]); } catch(IOException e) { }
+            }
+        }
+        System.arraycopy(resetCloseOnExec,0,closeOnExec,0,OPEN_MAX);
+        heapEnd = resetHeapEnd;
+        // stacks allocated since the reset point are above the heap end now
+        freeContextStacks = null;
+        setCPUState(resetCPUState.dup());
+    }
+    
     public final int call(String sym, Object[] args) throws CallException, FaultException {
         if(state != PAUSED && state != CALLJAVA) throw new IllegalStateException("call() called in inappropriate state");
         if(args.length > 7) throw new IllegalArgumentException("args.length > 7");
@@ -640,44 +1477,204 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     
     /** Calls a function in the process with the given arguments */
     public final int call(String sym, int[] args) throws CallException {
+        return lookupFunction(sym).call(args);
+    }
+    
+    /** Returns a handle for calling the function <i>sym</i> without looking it up (or allocating anything) each time */
+    public final Function lookupFunction(String sym) throws CallException {
         int func = lookupSymbol(sym);
         if(func == -1) throw new CallException(sym + " not found");
         int helper = lookupSymbol("_call_helper");
         if(helper == -1) throw new CallException("_call_helper not found");
-        return call(helper,func,args);
+        return new Function(helper,func);
     }
     
+    /** A function in the process resolved by lookupFunction(). Functions take up to 7 arguments.
+        @see Runtime#call(String,int[]) */
+    public final class Function {
+        private final int helper;
+        private final int addr;
+        
+        Function(int helper, int addr) { this.helper = helper; this.addr = addr; }
+        
+        public int call() throws CallException { return call0(helper,addr,0,0,0,0,0,0,0); }
+        public int call(int a0) throws CallException { return call0(helper,addr,a0,0,0,0,0,0,0); }
+        public int call(int a0, int a1) throws CallException { return call0(helper,addr,a0,a1,0,0,0,0,0); }
+        public int call(int a0, int a1, int a2) throws CallException { return call0(helper,addr,a0,a1,a2,0,0,0,0); }
+        public int call(int a0, int a1, int a2, int a3) throws CallException { return call0(helper,addr,a0,a1,a2,a3,0,0,0); }
+        public int call(int a0, int a1, int a2, int a3, int a4) throws CallException {
+            return call0(helper,addr,a0,a1,a2,a3,a4,0,0);
+        }
+        public int call(int a0, int a1, int a2, int a3, int a4, int a5) throws CallException {
+            return call0(helper,addr,a0,a1,a2,a3,a4,a5,0);
+        }
+        public int call(int a0, int a1, int a2, int a3, int a4, int a5, int a6) throws CallException {
+            return call0(helper,addr,a0,a1,a2,a3,a4,a5,a6);
+        }
+        
+        public int call(int[] args) throws CallException { return Runtime.this.call(helper,addr,args); }
+        
+        /** The address of the function */
+        public int address() { return addr; }
+    }
+    
+    /** Returns a new runtime sharing this process's address space, heap, and file descriptor table but with its own
+        registers and a <i>stackSize</i> byte stack allocated from the heap. Call contexts can call() into the process
+        at the same time as this runtime and each other (each from one thread at a time).
+        <p>Locking policy: the page tables and sbrk() are shared by all call contexts and guarded by heapLock().
+        Everything else in the process (like the malloc() heap, static variables, and the file descriptor table)
+        isn't. Callers must hold heapLock() while calling functions that use the heap or other global state;
+        functions that only use their arguments and the stack can be called without locking.</p>
+        <p>A function that exit()s (or faults) only ends its context: call() throws a CallException and the process,
+        file descriptors included, carries on. The stacks of contexts that exited or were released with
+        releaseCallContext() are handed out again by newCallContext().</p>
+        <p>Pages shared copy-on-write with their data are copied when the context is created. Pages copied later
+        (demand-zero pages on their first store, anything fork() or reset() shares again) are published to the
+        other threads without synchronization, so data written to them is only safely visible to another context
+        after both have held heapLock().</p> */
+    public final Runtime newCallContext(int stackSize) throws CallException {
+        Runtime owner = (Runtime) heapLock();
+        stackSize = (stackSize + 15) & ~15;
+        int[] stack = owner.reuseContextStack(stackSize);
+        if(stack == null) {
+            int bottom = owner.sbrk(stackSize);
+            if(bottom < 0) throw new CallException("couldn't allocate a " + stackSize + " byte stack for a call context");
+            stack = new int[]{bottom,stackSize};
+        }
+        Runtime r;
+        synchronized(owner) {
+            owner.unshareData();
+            sharedMemory = true;
+            try {
+                r = (Runtime) clone();
+            } catch(CloneNotSupportedException e) {
+                throw new Error(e.toString());
+            } finally {
+                sharedMemory = false;
+            }
+        }
+        // share the fd table too, dropping the references clone() took
+        for(int i=0;i<OPEN_MAX;i++) if(r.fds[i] != null) r.fds[i].close();
+        r.fds = fds;
+        r.sharedMemory = false;
+        r.memoryOwner = owner;
+        r.contextStack = stack;
+        r.stackLimit = stack[0];
+        r.state = PAUSED;
+        CPUState cpustate = new CPUState();
+        cpustate.r[GP] = gp();
+        cpustate.r[SP] = stack[0] + stack[1];
+        r.setCPUState(cpustate);
+        return r;
+    }
+    
+    /** Returns the call context the current thread should use for call()s into this process. It is created the first
+        time each thread asks for it (and again if the function it called exit()ed).
+        @see Runtime#newCallContext(int) */
+    public final Runtime threadContext() throws CallException {
+        ThreadLocal contexts = ((Runtime) heapLock()).callContexts;
+        Runtime r = (Runtime) contexts.get();
+        if(r == null || r.state == EXITED) {
+            r = newCallContext(CALL_CONTEXT_STACK_SIZE);
+            contexts.set(r);
+        }
+        return r;
+    }
+    
+    /** Releases the current thread's call context (see threadContext()), threads that are done calling into the
+        process should do this so its stack can be reused */
+    public final void releaseThreadContext() {
+        ThreadLocal contexts = ((Runtime) heapLock()).callContexts;
+        Runtime r = (Runtime) contexts.get();
+        if(r == null) return;
+        contexts.set(null);
+        r.releaseCallContext();
+    }
+    
+    /** Releases this call context. It can't be used any more and the next newCallContext() can reuse its stack.
+        Contexts whose function exit()ed are released automatically. */
+    public final void releaseCallContext() {
+        if(memoryOwner == null) throw new IllegalStateException("releaseCallContext() called on a process");
+        if(state != PAUSED && state != EXITED) throw new IllegalStateException("releaseCallContext() called in inappropriate state");
+        state = EXITED;
+        releaseContextStack();
+    }
+    
+    private void releaseContextStack() {
+        if(contextStack == null) return;
+        synchronized(memoryOwner) {
+            if(memoryOwner.freeContextStacks == null) memoryOwner.freeContextStacks = new Vector();
+            memoryOwner.freeContextStacks.addElement(contextStack);
+        }
+        contextStack = null;
+    }
+    
+    // Returns a released context stack of at least size bytes, null if there isn't one
+    private synchronized int[] reuseContextStack(int size) {
+        if(freeContextStacks == null) return null;
+        for(int i=0;i<freeContextStacks.size();i++) {
+            int[] stack = (int[]) freeContextStacks.elementAt(i);
+            if(stack[1] < size) continue;
+            freeContextStacks.removeElementAt(i);
+            return stack;
+        }
+        return null;
+    }
+    
+    /** The lock guarding this process's memory when call contexts are in use (see newCallContext()) */
+    public final Object heapLock() { return memoryOwner != null ? memoryOwner : this; }
+    
     /** Executes the code at <i>addr</i> in the process setting A0-A3 and S0-S3 to the given arguments
         and returns the contents of V1 when the the pause syscall is invoked */
-    //public final int call(int addr, int a0, int a1, int a2, int a3, int s0, int s1, int s2, int s3) {
     public final int call(int addr, int a0, int[] rest) throws CallException {
         if(rest.length > 7) throw new IllegalArgumentException("rest.length > 7");
+        int[] r = new int[7];
+        System.arraycopy(rest,0,r,0,rest.length);
+        return call0(addr,a0,r[0],r[1],r[2],r[3],r[4],r[5],r[6]);
+    }
+    
+    /** Saved and scratch CPUStates for each level of nested call()s (call()s made from a CallJavaCB) */
+    private CPUState[] callStates;
+    private int callDepth;
+    
+    private int call0(int addr, int a0, int a1, int a2, int a3, int s0, int s1, int s2, int s3) throws CallException {
         if(state != PAUSED && state != CALLJAVA) throw new IllegalStateException("call() called in inappropriate state");
         int oldState = state;
-        CPUState saved = new CPUState();        
-        getCPUState(saved);
-        CPUState cpustate = saved.dup();
+        if(callStates == null || callStates.length == callDepth*2) {
+            CPUState[] a = new CPUState[callDepth*2+2];
+            if(callStates != null) System.arraycopy(callStates,0,a,0,callStates.length);
+            a[callDepth*2] = new CPUState();
+            a[callDepth*2+1] = new CPUState();
+            callStates = a;
+        }
+        CPUState saved = callStates[callDepth*2];
+        CPUState cpustate = callStates[callDepth*2+1];
         
+        getCPUState(saved);
+        cpustate.set(saved);
         cpustate.r[SP] = cpustate.r[SP]&~15;
         cpustate.r[RA] = 0xdeadbeef;
         cpustate.r[A0] = a0;
-        switch(rest.length) {            
-            case 7: cpustate.r[S3] = rest[6];
-            case 6: cpustate.r[S2] = rest[5];
-            case 5: cpustate.r[S1] = rest[4];
-            case 4: cpustate.r[S0] = rest[3];
-            case 3: cpustate.r[A3] = rest[2];
-            case 2: cpustate.r[A2] = rest[1];
-            case 1: cpustate.r[A1] = rest[0];
-        }
+        cpustate.r[A1] = a1;
+        cpustate.r[A2] = a2;
+        cpustate.r[A3] = a3;
+        cpustate.r[S0] = s0;
+        cpustate.r[S1] = s1;
+        cpustate.r[S2] = s2;
+        cpustate.r[S3] = s3;
         cpustate.pc = addr;
         
         state = RUNNING;
 
-        setCPUState(cpustate);
-        __execute();
-        getCPUState(cpustate);
-        setCPUState(saved);
+        callDepth++;
+        try {
+            setCPUState(cpustate);
+            __execute();
+            getCPUState(cpustate);
+            setCPUState(saved);
+        } finally {
+            callDepth--;
+        }
 
         if(state != PAUSED) throw new CallException("Process exit()ed while servicing a call() request");
         state = oldState;
@@ -814,6 +1811,10 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         count = Math.min(count,MAX_CHUNK);
         if(fdn < 0 || fdn >= OPEN_MAX) return -EBADFD;
         if(fds[fdn] == null) return -EBADFD;
+        if(readBuffers != null) {
+            int n = readBuffers(fds[fdn],addr,count);
+            if(n >= 0) return n;
+        }
         byte[] buf = byteBuf(count);
         int n = fds[fdn].read(buf,0,count);
         copyout(buf,addr,n);
@@ -929,8 +1930,8 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     private int sys_sysconf(int n) {
         switch(n) {
             case _SC_CLK_TCK: return 1000;
-            case _SC_PAGESIZE: return  writePages.length == 1 ? 4096 : (1<<pageShift);
-            case _SC_PHYS_PAGES: return writePages.length == 1 ? (1<<pageShift)/4096 : writePages.length;
+            case _SC_PAGESIZE: return  totalPages == 1 ? 4096 : (1<<pageShift);
+            case _SC_PHYS_PAGES: return totalPages == 1 ? (1<<pageShift)/4096 : totalPages;
             default:
                 if(STDERR_DIAG) System.err.println("WARNING: Attempted to use unknown sysconf key: " + n);
                 return -EINVAL;
@@ -940,6 +1941,11 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     /** The sbrk syscall. This can also be used by subclasses to allocate memory.
         <i>incr</i> is how much to increase the break by */
     public final int sbrk(int incr) {
+        if(memoryOwner != null) return memoryOwner.sbrk(incr);
+        synchronized(heapLock()) { return _sbrk(incr); }
+    }
+    
+    private int _sbrk(int incr) {
         if(incr < 0) return -ENOMEM;
         if(incr==0) return heapEnd;
         incr = (incr+3)&~3;
@@ -947,13 +1953,12 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         int newEnd = oldEnd + incr;
         if(newEnd >= stackBottom) return -ENOMEM;
         
-        if(writePages.length > 1) {
+        if(totalPages > 1) {
             int pageMask = (1<<pageShift) - 1;
-            int pageWords = (1<<pageShift) >>> 2;
             int start = (oldEnd + pageMask) >>> pageShift;
             int end = (newEnd + pageMask) >>> pageShift;
             try {
-                for(int i=start;i<end;i++) readPages[i] = writePages[i] = new int[pageWords];
+                for(int i=start;i<end;i++) zeroFill(i);
             } catch(OutOfMemoryError e) {
                 if(STDERR_DIAG) System.err.println("WARNING: Caught OOM Exception in sbrk: " + e);
                 return -ENOMEM;
@@ -994,7 +1999,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         return 0;
     }
     
-    private int sys_getpagesize() { return writePages.length == 1 ? 4096 : (1<<pageShift); }
+    private int sys_getpagesize() { return totalPages == 1 ? 4096 : (1<<pageShift); }
     
     /** Hook for subclasses to do something when the process exits  */
     void _exited() {  }
@@ -1007,7 +2012,14 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             } catch(ErrnoException e) { }
         }
         exitStatus = status;
+        if(memoryOwner != null) {
+            // a call context, the process (and its fds) carry on. call() throws a CallException.
+            state = EXITED;
+            releaseContextStack();
+            return;
+        }
         for(int i=0;i<fds.length;i++) if(fds[i] != null) closeFD(i);
+        releaseResetFDs();
         state = EXITED;
         _exited();
     }
@@ -1119,6 +2131,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
 
             case SYS_kill:
             case SYS_fork:
+            case SYS_vfork:
             case SYS_pipe:
             case SYS_dup2:
             case SYS_waitpid:
@@ -1220,6 +2233,9 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         
         /** Read some bytes. Should return the number of bytes read, 0 on EOF, or throw an IOException on error */
         public int read(byte[] a, int off, int length) throws ErrnoException { throw new ErrnoException(EBADFD); }
+        /** Read some bytes into <i>b</i> (between its position and limit) without going through a java array.
+            Should return the number of bytes read, 0 on EOF, or -1 if this isn't supported (read(byte[],int,int) is used instead) */
+        public int read(ByteBuffer b) throws ErrnoException { return -1; }
         /** Write. Should return the number of bytes written or throw an IOException on error */
         public int write(byte[] a, int off, int length) throws ErrnoException { throw new ErrnoException(EBADFD); }
 
@@ -1296,6 +2312,17 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             }
         }
         
+        public int read(ByteBuffer b) throws ErrnoException {
+            if(!(data instanceof Seekable.File)) return -1;
+            if((flags&3) == WR_ONLY) throw new ErrnoException(EBADFD);
+            try {
+                int n = ((Seekable.File)data).read(b);
+                return n < 0 ? 0 : n;
+            } catch(IOException e) {
+                throw new ErrnoException(EIO);
+            }
+        }
+        
         protected void _close() { try { data.close(); } catch(IOException e) { /*ignore*/ } }        
     }
     
@@ -1466,11 +2493,12 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         public FaultException(RuntimeException e) { super(e.toString()); addr = -1; cause = e; }
     }
     public static class ExecutionException extends Exception {
+        private static final String UNKNOWN_LOCATION = "(unknown)";
         private String message = "(null)";
-        private String location = "(unknown)";
+        private String location = UNKNOWN_LOCATION;
         public ExecutionException() { /* noop */ }
         public ExecutionException(String s) { if(s != null) message = s; }
-        void setLocation(String s) { location = s == null ? "(unknown)" : s; }
+        void setLocation(String s) { location = s == null ? UNKNOWN_LOCATION : s; }
         public final String getMessage() { return message + " at " + location; }
     }
     public static class CallException extends Exception {
@@ -1495,16 +2523,19 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         
         public CPUState dup() {
             CPUState c = new CPUState();
-            c.hi = hi;
-            c.lo = lo;
-            c.fcsr = fcsr;
-            c.pc = pc;
-            for(int i=0;i<32;i++) {
-                    c.r[i] = r[i];
-                c.f[i] = f[i];
-            }
+            c.set(this);
             return c;
         }
+        
+        /** Copies <i>c</i> into this CPUState */
+        public void set(CPUState c) {
+            hi = c.hi;
+            lo = c.lo;
+            fcsr = c.fcsr;
+            pc = c.pc;
+            System.arraycopy(c.r,0,r,0,32);
+            System.arraycopy(c.f,0,f,0,32);
+        }
     }
     
     public static class SecurityManager {
@@ -1520,6 +2551,13 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             throw new ExecutionException("Attempted to dereference a null pointer " + toHex(addr));
     }
     
+    /** Called by code compiled with onePage and nullPointerCheck when a function moves the stack pointer down.
+        onePage has no unmapped guard pages below the stack to catch overflows. */
+    protected final void stackCheck(int sp) throws ExecutionException {
+        if(sp < stackLimit)
+            throw new ExecutionException("Stack overflow " + toHex(sp));
+    }
+    
     // Utility functions
     byte[] byteBuf(int size) {
         if(_byteBuf==null) _byteBuf = new byte[size];
@@ -1528,6 +2566,18 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         return _byteBuf;
     }
     
+    /** Returns the index of the last entry in the sorted array <i>starts</i> that isn't greater than <i>pc</i> or
+        -1 if there is none (used by the trampoline of classes compiled with functionMethods) */
+    protected static final int methodIndex(int[] starts, int pc) {
+        int lo = 0, hi = starts.length - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(starts[mid] <= pc) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return hi;
+    }
+
     /** Decode a packed string */
     protected static final int[] decodeData(String s, int words) {
         if(s.length() % 8 != 0) throw new IllegalArgumentException("string length must be a multiple of 8");
@@ -5,38 +5,314 @@
 package org.ibex.nestedvm;
 
 import java.io.*;
+import java.util.*;
+import java.security.*;
 
 import org.ibex.nestedvm.util.*;
 
-// This need a lot of work to support binaries spanned across many classes
+// Large binaries are spread across several classes (see the textShards option), with the lazyText option those
+// are only generated when they are first loaded. If a cache directory is set
+// (nestedvm.compilecache) the compiled classes are kept there and reused across JVMs.
 public class RuntimeCompiler {  
     public static Class compile(Seekable data) throws IOException, Compiler.Exn { return compile(data,null); }
     public static Class compile(Seekable data, String extraoptions) throws IOException, Compiler.Exn { return compile(data,extraoptions,null); }
     
     public static Class compile(Seekable data, String extraoptions, String sourceName) throws IOException, Compiler.Exn {
         String className = "nestedvm.runtimecompiled";
+        SingleClassLoader loader = new SingleClassLoader();
+        File dir = cacheDir;
+        String key = null;
+        if(dir != null && (key = cacheKey(data,extraoptions)) != null) {
+            byte[] bytecode = readCache(new File(dir,key),loader);
+            if(bytecode != null) {
+                loader.dataBytes = dataSize(data);
+                return loader.fromBytes(className,bytecode);
+            }
+        }
         byte[] bytecode;
         try {
-            bytecode = runCompiler(data,className,extraoptions,sourceName,null);
+            bytecode = runCompiler(data,className,extraoptions,sourceName,null,loader);
         } catch(Compiler.Exn e) {
             if(e.getMessage() != null || e.getMessage().indexOf("constant pool full")  != -1)
-                bytecode = runCompiler(data,className,extraoptions,sourceName,"lessconstants");
+                bytecode = runCompiler(data,className,extraoptions,sourceName,"lessconstants",loader);
             else
                 throw e;
         }
-        return new SingleClassLoader().fromBytes(className,bytecode);
+        // lazyText classes aren't cached, most of their helper classes never get generated
+        if(key != null && loader.lazy == null) writeCache(dir,key,bytecode,loader);
+        loader.dataBytes = dataSize(data);
+        return loader.fromBytes(className,bytecode);
+    }
+    
+    /** The bytes of bytecode and resources loaded for a class compiled here plus the size of its initialized data
+        (which the first instance's pages keep around for later ones), or -1 if it didn't come from here. Helper
+        classes lazyText hasn't generated yet aren't counted. */
+    static long footprint(Class c) {
+        ClassLoader l = c.getClassLoader();
+        return l instanceof SingleClassLoader ? ((SingleClassLoader) l).footprint() : -1;
+    }
+    
+    // The size of the sections the data image is made of
+    private static int dataSize(Seekable data) throws IOException {
+        try {
+            ELF elf = new ELF(data);
+            int total = 0;
+            for(int i=0;i<elf.sheaders.length;i++) {
+                ELF.SHeader sheader = elf.sheaders[i];
+                if((sheader.flags & ELF.SHF_ALLOC) != 0 && sheader.type != ELF.SHT_NOBITS && !sheader.name.equals(".text"))
+                    total += sheader.size;
+            }
+            return total;
+        } finally {
+            data.seek(0);
+        }
+    }
+    
+    /** The directory compiled binaries are kept in across runs (the nestedvm.compilecache property by default),
+        null if they aren't */
+    private static File cacheDir;
+    static {
+        String dir = Platform.getProperty("nestedvm.compilecache");
+        if(dir != null) cacheDir = new File(dir);
+    }
+    
+    /** Sets the directory compiled binaries are kept in across runs and shared by everything else using it,
+        null to turn this off. Entries are keyed by a hash of the binary and the compiler options. */
+    public static void setCacheDir(File dir) { cacheDir = dir; }
+    
+    private static final long DEFAULT_CACHE_SIZE = 256*1024*1024;
+    
+    /** Once the entries in the cache directory add up to more than this the least recently used ones are deleted
+        (the nestedvm.compilecachesize property by default). Entries for binaries that changed or of other builds
+        are never used again so they go first. */
+    private static long cacheMaxBytes = DEFAULT_CACHE_SIZE;
+    static {
+        String s = Platform.getProperty("nestedvm.compilecachesize");
+        if(s != null) try { cacheMaxBytes = Long.parseLong(s); } catch(NumberFormatException e) { /* keep the default */ }
+    }
+    
+    /** Sets the most bytes of entries kept in the cache directory. Checked whenever an entry is written. */
+    public static void setCacheSize(long maxBytes) {
+        if(maxBytes < 0) throw new IllegalArgumentException("maxBytes < 0");
+        cacheMaxBytes = maxBytes;
+    }
+    
+    // Has to change whenever the format of the entries does, entries of other versions are ignored
+    private static final int CACHE_VERSION = 1;
+    private static final int CACHE_MAGIC = 0x4e564343; // "NVCC"
+    
+    // The classes the generated code depends on. Their bytecode is part of the key so entries written by any other
+    // build of nestedvm are never loaded.
+    private static final String[] BUILD_CLASSES = {
+        "Compiler", "ClassFileCompiler", "RuntimeCompiler", "Runtime", "UnixRuntime"
+    };
+    private static byte[] buildDigest;
+    private static boolean buildDigestDone;
+    
+    // Returns a digest of the classes in BUILD_CLASSES, null if they can't be read (entries aren't used then)
+    private static synchronized byte[] buildDigest() {
+        if(buildDigestDone) return buildDigest;
+        buildDigestDone = true;
+        try {
+            MessageDigest md = sha1();
+            byte[] buf = new byte[65536];
+            for(int i=0;i<BUILD_CLASSES.length;i++) {
+                InputStream is = RuntimeCompiler.class.getResourceAsStream(BUILD_CLASSES[i] + ".class");
+                if(is == null) {
+                    if(Runtime.STDERR_DIAG) System.err.println("WARNING: Can't find " + BUILD_CLASSES[i] + ".class, not using the compile cache");
+                    return null;
+                }
+                try {
+                    int n;
+                    while((n = is.read(buf,0,buf.length)) > 0) md.update(buf,0,n);
+                } finally {
+                    is.close();
+                }
+            }
+            buildDigest = md.digest();
+        } catch(IOException e) {
+            if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't read the nestedvm classes, not using the compile cache: " + e);
+        }
+        return buildDigest;
     }
     
-    private static byte[] runCompiler(Seekable data, String name, String options, String sourceName, String moreOptions) throws IOException, Compiler.Exn {
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new Error("no SHA-1: " + e);
+        }
+    }
+    
+    // Returns the name of the entry for data compiled with options by this build, null if there can't be one
+    private static String cacheKey(Seekable data, String options) throws IOException {
+        byte[] build = buildDigest();
+        if(build == null) return null;
+        MessageDigest md = sha1();
+        byte[] buf = new byte[65536];
+        try {
+            int n;
+            while((n = data.read(buf,0,buf.length)) > 0) md.update(buf,0,n);
+        } finally {
+            data.seek(0);
+        }
+        md.update(build);
+        md.update(("\0" + CACHE_VERSION + "\0" + options).getBytes("UTF-8"));
+        byte[] d = md.digest();
+        StringBuffer sb = new StringBuffer(d.length*2 + 6);
+        for(int i=0;i<d.length;i++) {
+            sb.append(Character.forDigit((d[i]>>>4)&0xf,16));
+            sb.append(Character.forDigit(d[i]&0xf,16));
+        }
+        return sb.append(".nvc").toString();
+    }
+    
+    // Cache entries are the magic, then the number of classes and resources, then the main class and the
+    // helper classes and resources each as a type byte, name, length and the bytes
+    private static final int ENTRY_MAIN = 0, ENTRY_HELPER = 1, ENTRY_RESOURCE = 2;
+    
+    // Returns the main class's bytecode and sets up the helpers and resources of loader, null if there is no
+    // usable entry in f
+    private static byte[] readCache(File f, SingleClassLoader loader) {
+        if(!f.exists()) return null;
+        byte[] main = readCacheEntry(f,loader);
+        // entries are deleted least recently used first, bad ones right away
+        if(main != null) f.setLastModified(System.currentTimeMillis());
+        else f.delete();
+        return main;
+    }
+    
+    private static byte[] readCacheEntry(File f, SingleClassLoader loader) {
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                if(dis.readInt() != CACHE_MAGIC) return null;
+                int n = dis.readInt();
+                byte[] main = null;
+                Hashtable helpers = new Hashtable();
+                Hashtable resources = new Hashtable();
+                for(int i=0;i<n;i++) {
+                    int type = dis.readByte();
+                    String name = dis.readUTF();
+                    int len = dis.readInt();
+                    if(len < 0 || len > f.length()) throw new IOException("bad length " + len);
+                    byte[] b = new byte[len];
+                    dis.readFully(b);
+                    switch(type) {
+                        case ENTRY_MAIN: main = b; break;
+                        case ENTRY_HELPER: helpers.put(name,b); break;
+                        case ENTRY_RESOURCE: resources.put(name,b); break;
+                        default: return null;
+                    }
+                }
+                if(main == null) return null;
+                loader.helpers = helpers;
+                loader.resources = resources;
+                return main;
+            } finally {
+                dis.close();
+            }
+        } catch(IOException e) {
+            if(Runtime.STDERR_DIAG) System.err.println("WARNING: Ignoring bad compile cache entry " + f + ": " + e);
+            return null;
+        }
+    }
+    
+    // Written to a temporary file that is renamed into place so other JVMs sharing dir never see half an entry
+    private static void writeCache(File dir, String key, byte[] main, SingleClassLoader loader) {
+        File tmp = null;
+        try {
+            dir.mkdirs();
+            tmp = File.createTempFile("nestedvm",".tmp",dir);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                dos.writeInt(CACHE_MAGIC);
+                dos.writeInt(1 + loader.helpers.size() + loader.resources.size());
+                writeCacheEntry(dos,ENTRY_MAIN,"",main);
+                for(Enumeration e = loader.helpers.keys();e.hasMoreElements();) {
+                    String name = (String) e.nextElement();
+                    writeCacheEntry(dos,ENTRY_HELPER,name,(byte[]) loader.helpers.get(name));
+                }
+                for(Enumeration e = loader.resources.keys();e.hasMoreElements();) {
+                    String name = (String) e.nextElement();
+                    writeCacheEntry(dos,ENTRY_RESOURCE,name,(byte[]) loader.resources.get(name));
+                }
+            } finally {
+                dos.close();
+            }
+            if(tmp.renameTo(new File(dir,key))) {
+                tmp = null;
+                pruneCache(dir,key);
+            }
+        } catch(IOException e) {
+            if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't write compile cache entry " + key + ": " + e);
+        } finally {
+            if(tmp != null) tmp.delete();
+        }
+    }
+    
+    // Temporary files this old were left behind by a JVM that died while writing an entry
+    private static final long STALE_TMP_AGE = 24*60*60*1000L;
+    
+    // Deletes the least recently used entries (but never keep, the one just written) until the rest fit in
+    // cacheMaxBytes. Other JVMs may be doing the same, files that are already gone are simply skipped.
+    private static void pruneCache(File dir, String keep) {
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        long now = System.currentTimeMillis();
+        Vector entries = new Vector();
+        long total = 0;
+        for(int i=0;i<files.length;i++) {
+            String name = files[i].getName();
+            if(name.endsWith(".nvc")) {
+                if(name.equals(keep)) continue;
+                entries.addElement(files[i]);
+                total += files[i].length();
+            } else if(name.startsWith("nestedvm") && name.endsWith(".tmp") && now - files[i].lastModified() > STALE_TMP_AGE) {
+                files[i].delete();
+            }
+        }
+        total += new File(dir,keep).length();
+        if(total <= cacheMaxBytes) return;
+        File[] a = new File[entries.size()];
+        entries.copyInto(a);
+        final long[] times = new long[a.length];
+        Integer[] order = new Integer[a.length];
+        for(int i=0;i<a.length;i++) { times[i] = a[i].lastModified(); order[i] = new Integer(i); }
+        Arrays.sort(order,new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long t1 = times[((Integer) o1).intValue()], t2 = times[((Integer) o2).intValue()];
+                return t1 < t2 ? -1 : t1 > t2 ? 1 : 0;
+            }
+        });
+        for(int i=0;i<order.length && total > cacheMaxBytes;i++) {
+            File f = a[order[i].intValue()];
+            long len = f.length();
+            if(f.delete()) total -= len;
+        }
+    }
+    
+    private static void writeCacheEntry(DataOutputStream dos, int type, String name, byte[] b) throws IOException {
+        dos.writeByte(type);
+        dos.writeUTF(name);
+        dos.writeInt(b.length);
+        dos.write(b);
+    }
+    
+    private static byte[] runCompiler(Seekable data, String name, String options, String sourceName, String moreOptions, SingleClassLoader loader) throws IOException, Compiler.Exn {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         
         try {
             ClassFileCompiler c = new ClassFileCompiler(data,name,baos);
-            c.parseOptions("nosupportcall,maxinsnpermethod=256");
+            c.parseOptions("nosupportcall,maxinsnpermethod=256,textshards=0");
             c.setSource(sourceName);
             if(options != null) c.parseOptions(options);
             if(moreOptions != null) c.parseOptions(moreOptions);
             c.go();
+            // with lazyText the helper classes are generated as they are loaded
+            if(c.helperClassesPending()) loader.lazy = c;
+            else loader.helpers = c.getHelperClasses();
+            loader.resources = c.getResources();
         } finally {
             data.seek(0);
         }
@@ -46,12 +322,43 @@ public class RuntimeCompiler {
     }
     
     private static class SingleClassLoader extends ClassLoader {
+        Hashtable helpers = new Hashtable(); // the helper classes of the compiled class by name
+        Hashtable resources = new Hashtable();
+        ClassFileCompiler lazy; // generates the helper classes with lazyText, dropped once it generated them all
+        long classBytes; // the bytecode of the classes defined so far
+        int dataBytes;
+        
+        synchronized long footprint() {
+            long total = classBytes + dataBytes;
+            for(Enumeration e = resources.elements();e.hasMoreElements();) total += ((byte[]) e.nextElement()).length;
+            return total;
+        }
+        
         public Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
             //System.err.println(this + ": loadClass(\"" + name + "," + resolve + ");");
             return super.loadClass(name,resolve);
         }
+        protected Class findClass(String name) throws ClassNotFoundException {
+            byte[] b = (byte[]) helpers.get(name);
+            if(b == null && lazy != null) {
+                try {
+                    b = lazy.getHelperClass(name);
+                } catch(Compiler.Exn e) {
+                    throw new ClassNotFoundException(name + ": " + e.getMessage());
+                }
+                if(!lazy.helperClassesPending()) lazy = null;
+            }
+            if(b == null) throw new ClassNotFoundException(name);
+            synchronized(this) { classBytes += b.length; }
+            return defineClass(name,b,0,b.length);
+        }
+        public InputStream getResourceAsStream(String name) {
+            byte[] b = (byte[]) resources.get(name);
+            return b != null ? new ByteArrayInputStream(b) : super.getResourceAsStream(name);
+        }
         public Class fromBytes(String name, byte[] b) { return fromBytes(name,b,0,b.length); }
         public Class fromBytes(String name, byte[] b, int off, int len) {
+            synchronized(this) { classBytes += len; }
             Class c = super.defineClass(name,b,off,len);
             resolveClass(c);
             return c;
@@ -59,11 +366,18 @@ public class RuntimeCompiler {
     }
     
     public static void main(String[] args) throws Exception {
+        String options = "unixruntime";
+        if(args.length > 1 && args[0].equals("-o")) {
+            options += "," + args[1];
+            String[] a = new String[args.length-2];
+            System.arraycopy(args,2,a,0,a.length);
+            args = a;
+        }
         if(args.length == 0) {
-            System.err.println("Usage: RuntimeCompiler mipsbinary");
+            System.err.println("Usage: RuntimeCompiler [-o options] mipsbinary");
             System.exit(1);
         }
-        UnixRuntime r = (UnixRuntime) compile(new Seekable.File(args[0]),"unixruntime").newInstance();
+        UnixRuntime r = (UnixRuntime) compile(new Seekable.File(args[0]),options).newInstance();
         System.err.println("Instansiated: "+ r);
         System.exit(UnixRuntime.runAndExec(r,args));
     }
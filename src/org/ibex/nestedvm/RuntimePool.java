@@ -0,0 +1,68 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package org.ibex.nestedvm;
+
+import java.util.*;
+
+/** A pool of reusable instances of a compiled Runtime class for call() style embedding. New instances are
+    started and executed until the program first pauses, which becomes their reset point. Instances handed back
+    with put() are reset and given to the next caller of get().
+    @see Runtime#setResetPoint() */
+public class RuntimePool {
+    private final Class c;
+    private final String[] args;
+    private final String[] env;
+    private final int maxIdle;
+    private final Vector idle = new Vector();
+
+    public RuntimePool(Class c, int maxIdle) { this(c,null,null,maxIdle); }
+
+    /** Creates a pool for instances of <i>c</i> started with <i>args</i> and <i>env</i> keeping at most
+        <i>maxIdle</i> of them around */
+    public RuntimePool(Class c, String[] args, String[] env, int maxIdle) {
+        if(!Runtime.class.isAssignableFrom(c)) throw new IllegalArgumentException(c.getName() + " isn't a Runtime");
+        this.c = c;
+        this.args = args;
+        this.env = env;
+        this.maxIdle = maxIdle;
+    }
+
+    /** Returns an idle runtime or starts a new one */
+    public Runtime get() {
+        synchronized(idle) {
+            int n = idle.size();
+            if(n > 0) {
+                Runtime r = (Runtime) idle.elementAt(n-1);
+                idle.removeElementAt(n-1);
+                return r;
+            }
+        }
+        return newRuntime();
+    }
+
+    /** Hands <i>r</i> back to the pool. It is reset first. Runtimes that exited are dropped. */
+    public void put(Runtime r) {
+        if(r.getState() != Runtime.PAUSED) return;
+        r.reset();
+        synchronized(idle) {
+            if(idle.size() < maxIdle) idle.addElement(r);
+        }
+    }
+
+    /** Creates, starts, and sets the reset point of a new runtime. Subclasses can override this to set up
+        each new runtime some more before the reset point is set. */
+    protected Runtime newRuntime() {
+        Runtime r;
+        try {
+            r = (Runtime) c.newInstance();
+        } catch(Exception e) {
+            throw new IllegalStateException("couldn't instantiate " + c.getName() + ": " + e);
+        }
+        r.start(args,env);
+        if(r.execute()) throw new IllegalStateException(c.getName() + " exited before pausing");
+        r.setResetPoint();
+        return r;
+    }
+}
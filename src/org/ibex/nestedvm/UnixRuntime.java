@@ -11,8 +11,6 @@ import java.net.*;
 import java.nio.file.*;
 import java.lang.reflect.*; // For lazily linked RuntimeCompiler
 
-// FEATURE: vfork
-
 public abstract class UnixRuntime extends Runtime implements Cloneable {
     /** The pid of this "process" */
     private int pid;
@@ -100,6 +98,9 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     }
 
     private static class ProcessTableFullExn extends RuntimeException { }
+    
+    void _snapshot(DataOutputStream dos) throws IOException { dos.writeUTF(cwd); }
+    void _restore(DataInputStream dis) throws IOException { cwd = dis.readUTF(); }
 
     void _started() {
         UnixRuntime[] tasks = gs.tasks;
@@ -138,6 +139,8 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
             return sys_kill(a,b);
         case SYS_fork:
             return sys_fork();
+        case SYS_vfork:
+            return sys_vfork();
         case SYS_pipe:
             return sys_pipe(a);
         case SYS_dup2:
@@ -380,6 +383,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
 
 
     void _exited() {
+        releaseSharedMemory();
         if(children != null) synchronized(children) {
                 for(Enumeration e = exitedChildren.elements(); e.hasMoreElements(); ) {
                     UnixRuntime child = (UnixRuntime) e.nextElement();
@@ -419,13 +423,26 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     }
 
     private int sys_fork() {
+        return fork(false);
+    }
+
+    /** The vfork syscall. The child borrows this process's address space rather than getting a copy of it
+        and this process is suspended until the child exec()s or exits. */
+    private int sys_vfork() {
+        return fork(true);
+    }
+
+    private int fork(boolean vfork) {
         final UnixRuntime r;
 
+        sharedMemory = vfork;
         try {
             r = (UnixRuntime) clone();
         } catch(Exception e) {
             e.printStackTrace();
             return -ENOMEM;
+        } finally {
+            sharedMemory = false;
         }
 
         r.parent = this;
@@ -453,9 +470,26 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
 
         new ForkedProcess(r);
 
+        if(vfork) synchronized(r) {
+                while(r.sharedMemory) {
+                    try {
+                        r.wait();
+                    } catch(InterruptedException e) { }
+                }
+            }
+
         return r.pid;
     }
 
+    /** Wakes up the parent of a vfork()ed process once it no longer needs the parent's address space */
+    private void releaseSharedMemory() {
+        if(!sharedMemory) return;
+        synchronized(this) {
+            sharedMemory = false;
+            notify();
+        }
+    }
+
     public static final class ForkedProcess extends Thread {
         private final UnixRuntime initial;
         public ForkedProcess(UnixRuntime initial) {
@@ -509,6 +543,25 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
             m = null;
         }
         runtimeCompilerCompile = m;
+        try {
+            m = runtimeCompilerCompile == null ? null : runtimeCompilerCompile.getDeclaringClass().getDeclaredMethod("footprint",new Class[] {Class.class});
+        } catch(NoSuchMethodException e) {
+            m = null;
+        }
+        runtimeCompilerFootprint = m;
+    }
+    private final static Method runtimeCompilerFootprint;
+    
+    /** The memory a class from runtimeCompile() holds on to (see RuntimeCompiler.footprint), -1 if unknown */
+    static long compiledFootprint(Class c) {
+        if(runtimeCompilerFootprint == null) return -1;
+        try {
+            return ((Long) runtimeCompilerFootprint.invoke(null,new Object[] {c})).longValue();
+        } catch(IllegalAccessException e) {
+            return -1;
+        } catch(InvocationTargetException e) {
+            return -1;
+        }
     }
 
     public Class runtimeCompile(Seekable s, String sourceName) throws IOException {
@@ -556,6 +609,8 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                     return execClass((Class) ent.o,argv,envp);
                 if(ent.o instanceof String[])
                     return execScript(path,(String[]) ent.o,argv,envp);
+                if(ent.o instanceof BackgroundCompile)
+                    return execInterpreted((BackgroundCompile) ent.o,argv,envp);
                 throw new Error("should never happen");
             }
             //System.err.println("Cache was out of date");
@@ -578,6 +633,12 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                 if(n < 4) s.tryReadFully(buf,n,4-n);
                 if(buf[1] != 'E' || buf[2] != 'L' || buf[3] != 'F') return -ENOEXEC;
                 s.seek(0);
+                Class pc = gs.precompiledClass(s);
+                if(pc != null) {
+                    gs.execCache.put(path,new GlobalState.CacheEnt(mtime,size,pc));
+                    return execClass(pc,argv,envp);
+                }
+                if(gs.tieredExec && runtimeCompilerCompile != null) return execTiered(path,s,mtime,size,argv,envp);
                 if(STDERR_DIAG) System.err.println("Running RuntimeCompiler for " + path);
                 Class c = runtimeCompile(s,path);
                 if(STDERR_DIAG) System.err.println("RuntimeCompiler finished for " + path);
@@ -649,6 +710,128 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         }
     }
 
+    // Starts the binary in the Interpreter right away and compiles it in the background. The process moves to
+    // the compiled class at a syscall once that is done.
+    private int execTiered(String path, Seekable s, long mtime, long size, String[] argv, String[] envp) throws IOException, ErrnoException {
+        byte[] binary = new byte[s.length()];
+        if(s.tryReadFully(binary,0,binary.length) != binary.length) throw new ErrnoException(ENOEXEC);
+        BackgroundCompile bc = new BackgroundCompile(this,path,mtime,size,binary);
+        gs.execCache.put(path,new GlobalState.CacheEnt(mtime,size,bc));
+        bc.start();
+        return execInterpreted(bc,argv,envp);
+    }
+
+    private int execInterpreted(BackgroundCompile bc, String[] argv, String[] envp) {
+        Interpreter r;
+        try {
+            r = new Interpreter(new Seekable.ByteArray(bc.binary,false));
+        } catch(IOException e) {
+            return -ENOEXEC;
+        }
+        r.image = bc.path;
+        r.tieredCompile = bc;
+        return exec(r,argv,envp);
+    }
+
+    /** The background compile of the binary this Interpreter is running (tiered exec()) */
+    BackgroundCompile tieredCompile;
+
+    /** Called by the Interpreter after each syscall. Once the background compile of the binary is done the process
+        moves to a new instance of the compiled class (like an exec() that keeps the memory and cpu state) and true
+        is returned. */
+    final boolean tieredSafePoint() {
+        BackgroundCompile bc = tieredCompile;
+        if(bc == null || !bc.done()) return false;
+        tieredCompile = null;
+        Class c = bc.compiled();
+        if(c == null || sharedMemory) return false;
+        UnixRuntime r;
+        try {
+            r = (UnixRuntime) c.getDeclaredConstructor(new Class[] {Boolean.TYPE}).newInstance(new Object[] {Boolean.TRUE});
+        } catch(Exception e) {
+            if(STDERR_DIAG) e.printStackTrace();
+            return false;
+        }
+        if(!moveTo(r)) return false;
+
+        r.fds = fds;
+        r.closeOnExec = closeOnExec;
+        fds = null;
+        closeOnExec = null;
+        r.gs = gs;
+        r.sm = sm;
+        r.cwd = cwd;
+        r.pid = pid;
+        r.parent = parent;
+        synchronized(gs) {
+            gs.tasks[pid] = r;
+            if(parent != null) synchronized(parent.children) {
+                int i = parent.activeChildren.indexOf(this);
+                if(i != -1) parent.activeChildren.setElementAt(r,i);
+            }
+        }
+        if(children != null) synchronized(children) {
+            r.children = children;
+            r.activeChildren = activeChildren;
+            r.exitedChildren = exitedChildren;
+            for(int i=0; i<activeChildren.size(); i++) ((UnixRuntime) activeChildren.elementAt(i)).parent = r;
+            children = null;
+            activeChildren = exitedChildren = null;
+        }
+
+        state = EXECED;
+        execedRuntime = r;
+        return true;
+    }
+
+    /** A binary being compiled in the background for tiered exec(). Once it is done the GlobalState's exec cache
+        entry points to the compiled class. */
+    static final class BackgroundCompile extends Thread {
+        final String path;
+        final byte[] binary;
+        private final UnixRuntime compiler;
+        private final long mtime;
+        private final long size;
+        private Class c;
+        private boolean done;
+
+        BackgroundCompile(UnixRuntime compiler, String path, long mtime, long size, byte[] binary) {
+            super("nestedvm compile " + path);
+            setDaemon(true);
+            this.compiler = compiler;
+            this.path = path;
+            this.mtime = mtime;
+            this.size = size;
+            this.binary = binary;
+        }
+
+        public void run() {
+            Class c = null;
+            try {
+                if(STDERR_DIAG) System.err.println("Running RuntimeCompiler for " + path + " in the background");
+                c = compiler.runtimeCompile(new Seekable.ByteArray(binary,false),path);
+                if(STDERR_DIAG) System.err.println("RuntimeCompiler finished for " + path);
+            } catch(Exception e) {
+                if(STDERR_DIAG) e.printStackTrace();
+            }
+            synchronized(this) {
+                this.c = c;
+                done = true;
+            }
+            GlobalState.ExecCache execCache = compiler.gs.execCache;
+            synchronized(execCache) {
+                GlobalState.CacheEnt ent = (GlobalState.CacheEnt) execCache.get(path);
+                if(ent != null && ent.o == this) {
+                    if(c != null) execCache.put(path,new GlobalState.CacheEnt(mtime,size,c));
+                    else execCache.remove(path);
+                }
+            }
+        }
+
+        synchronized boolean done() { return done; }
+        synchronized Class compiled() { return c; }
+    }
+
     private int exec(UnixRuntime r, String[] argv, String[] envp) {
         //System.err.println("Execing " + r);
         for(int i=0; i<OPEN_MAX; i++) if(closeOnExec[i]) closeFD(i);
@@ -667,6 +850,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
 
         state = EXECED;
         execedRuntime = r;
+        releaseSharedMemory();
 
         return 0;
     }
@@ -1578,7 +1762,16 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     }
 
     public static final class GlobalState {
-        Hashtable execCache = new Hashtable();
+        final ExecCache execCache = new ExecCache();
+
+        /** Limits the binaries exec() keeps compiled to about <i>bytes</i> worth of binaries (by their size on disk,
+            the nestedvm.execcachesize property sets the default). The least recently used ones are dropped first. */
+        public void setExecCacheSize(long bytes) { execCache.setMaxBytes(bytes); }
+
+        /** exec() starts new binaries in the Interpreter while they are compiled in the background
+            (the nestedvm.tieredexec property sets the default) */
+        boolean tieredExec = Platform.getProperty("nestedvm.tieredexec") != null;
+        public void setTieredExec(boolean b) { tieredExec = b; }
 
         final UnixRuntime[] tasks;
         int nextPID = 1;
@@ -1624,6 +1817,98 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                 addMount("/resource",new ResourceFS());
                 addMount("/cygdrive",new CygdriveFS());
             }
+
+            String jars = Platform.getProperty("nestedvm.precompiled");
+            if(jars != null) {
+                for(StringTokenizer st = new StringTokenizer(jars,File.pathSeparator); st.hasMoreTokens();) {
+                    String jar = st.nextToken();
+                    try {
+                        addPrecompiled(new File(jar));
+                    } catch(IOException e) {
+                        if(STDERR_DIAG) System.err.println("WARNING: Couldn't load precompiled binaries from " + jar + ": " + e);
+                    }
+                }
+            }
+        }
+
+        /** The resource listing the binaries in a jar written by BatchCompiler */
+        static final String PRECOMPILED_INDEX = "nestedvm/precompiled.idx";
+
+        /** The classes of precompiled binaries by the SHA-1 of the binary */
+        private final Hashtable precompiled = new Hashtable();
+
+        private static final class Precompiled {
+            final ClassLoader loader;
+            final String className;
+            Class c;
+            Precompiled(ClassLoader loader, String className) { this.loader = loader; this.className = className; }
+        }
+
+        /** exec() runs the binaries precompiled into <i>jar</i> by BatchCompiler rather than compiling them
+            (the nestedvm.precompiled property lists jars added by default) */
+        public void addPrecompiled(File jar) throws IOException {
+            addPrecompiled(new URLClassLoader(new URL[] { jar.toURI().toURL() },UnixRuntime.class.getClassLoader()));
+        }
+
+        /** Adds the binaries precompiled into a jar <i>loader</i> loads classes from */
+        public void addPrecompiled(ClassLoader loader) throws IOException {
+            InputStream is = loader.getResourceAsStream(PRECOMPILED_INDEX);
+            if(is == null) throw new IOException("no " + PRECOMPILED_INDEX);
+            BufferedReader r = new BufferedReader(new InputStreamReader(is,"UTF-8"));
+            try {
+                String line;
+                while((line = r.readLine()) != null) {
+                    if(line.length() == 0 || line.startsWith("#")) continue;
+                    StringTokenizer st = new StringTokenizer(line," ");
+                    if(st.countTokens() < 2) throw new IOException("bad line in " + PRECOMPILED_INDEX + ": " + line);
+                    precompiled.put(st.nextToken(),new Precompiled(loader,st.nextToken()));
+                }
+            } finally {
+                r.close();
+            }
+        }
+
+        /** Returns the precompiled class of the binary <i>s</i>, null if there is none */
+        Class precompiledClass(Seekable s) throws IOException {
+            if(precompiled.isEmpty()) return null;
+            Precompiled p = (Precompiled) precompiled.get(binaryHash(s));
+            if(p == null) return null;
+            synchronized(p) {
+                if(p.c == null) {
+                    try {
+                        p.c = Class.forName(p.className,true,p.loader);
+                    } catch(ClassNotFoundException e) {
+                        if(STDERR_DIAG) System.err.println("WARNING: precompiled class " + p.className + " is missing");
+                        return null;
+                    }
+                }
+                return p.c;
+            }
+        }
+
+        /** The hex SHA-1 of the contents of a binary, this is how BatchCompiler's index names them */
+        static String binaryHash(Seekable s) throws IOException {
+            java.security.MessageDigest md;
+            try {
+                md = java.security.MessageDigest.getInstance("SHA-1");
+            } catch(java.security.NoSuchAlgorithmException e) {
+                throw new Error("no SHA-1: " + e);
+            }
+            byte[] buf = new byte[65536];
+            s.seek(0);
+            try {
+                int n;
+                while((n = s.read(buf,0,buf.length)) > 0) md.update(buf,0,n);
+            } finally {
+                s.seek(0);
+            }
+            byte[] d = md.digest();
+            StringBuffer sb = new StringBuffer(d.length*2);
+            for(int i=0; i<d.length; i++) {
+                sb.append(Character.forDigit((d[i]>>>4)&0xf,16));
+                sb.append(Character.forDigit(d[i]&0xf,16));
+            }
+            return sb.toString();
         }
 
         public String mapHostPath(String s) {
@@ -1831,10 +2116,63 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
             fsop(FS.LINK,r,oldpath,newpath, 0, 0);
         }
 
+        private static final long DEFAULT_EXEC_CACHE_SIZE = 32*1024*1024;
+
+        /** The classes (and #! lines) exec() found for each path. Classes from the RuntimeCompiler are weighed by
+            their bytecode, resources and data image, anything else by the size of the binary. Once they add up to
+            more than maxBytes the least recently used are dropped which lets their class loaders be collected. The
+            most recent entry is always kept. */
+        static final class ExecCache {
+            private final LinkedHashMap map = new LinkedHashMap(16,0.75f,true);
+            private long maxBytes = DEFAULT_EXEC_CACHE_SIZE;
+            private long bytes;
+
+            ExecCache() {
+                String s = Platform.getProperty("nestedvm.execcachesize");
+                if(s != null) try { maxBytes = Long.parseLong(s); } catch(NumberFormatException e) { /* keep the default */ }
+            }
+
+            synchronized Object get(String path) { return map.get(path); }
+
+            synchronized void put(String path, CacheEnt ent) {
+                remove(path);
+                ent.weight = weight(ent);
+                map.put(path,ent);
+                bytes += ent.weight;
+                evict();
+            }
+
+            synchronized void remove(String path) {
+                CacheEnt ent = (CacheEnt) map.remove(path);
+                if(ent != null) bytes -= ent.weight;
+            }
+
+            synchronized void setMaxBytes(long maxBytes) {
+                if(maxBytes < 0) throw new IllegalArgumentException("maxBytes < 0");
+                this.maxBytes = maxBytes;
+                evict();
+            }
+
+            private void evict() {
+                for(Iterator it = map.values().iterator(); bytes > maxBytes && map.size() > 1;) {
+                    bytes -= ((CacheEnt) it.next()).weight;
+                    it.remove();
+                }
+            }
+
+            // #! lines are tiny, binaries being compiled in the background hold on to their bytes until then
+            private static long weight(CacheEnt ent) {
+                if(ent.o instanceof String[]) return 0;
+                long n = ent.o instanceof Class ? compiledFootprint((Class) ent.o) : -1;
+                return n >= 0 ? n : ent.size;
+            }
+        }
+
         private static class CacheEnt {
             public final long time;
             public final long size;
             public final Object o;
+            long weight; // set by ExecCache.put(), lazyText classes grow after that
             public CacheEnt(long time, long size, Object o) {
                 this.time = time;
                 this.size = size;
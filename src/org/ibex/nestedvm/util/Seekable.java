@@ -92,6 +92,8 @@ public abstract class Seekable {
         }
         
         public int read(byte[] buf, int offset, int length) throws IOException { return raf.read(buf,offset,length); }
+        /** Reads straight into <i>b</i> through the file's channel (returns -1 on EOF) */
+        public int read(java.nio.ByteBuffer b) throws IOException { return raf.getChannel().read(b); }
         public int write(byte[] buf, int offset, int length) throws IOException { raf.write(buf,offset,length); return length; }
         public void sync() throws IOException { raf.getFD().sync(); }
         public void seek(int pos) throws IOException{ raf.seek(pos); }
@@ -5,6 +5,7 @@
 package tests;
 
 import org.ibex.nestedvm.Runtime;
+import org.ibex.nestedvm.RuntimePool;
 import java.io.*;
 import java.util.Date;
 
@@ -50,16 +51,162 @@ public class CallTest {
         int ret = rt.call("callme",new int[]{a1,a2,a3,a4,a5,a6});
         System.out.println("callme returned: " + ret);
         
+        Runtime.Function callme = rt.lookupFunction("callme");
+        if(callme.call(a1,a2,a3,a4,a5,a6) != ret) throw new Error("callme through a Function returned something else");
+        int ret5 = callme.call(a1,a2,a3,a4,a5);
+        if(ret5 != ret - a6) throw new Error("callme with 5 args returned " + ret5);
+        System.out.println("callme through a Function with 5 args returned: " + ret5);
+        
         int addr = rt.strdup("Hello, World from java");
         rt.call("echo",addr,4);
         rt.free(addr);
         rt.call("echo",new Object[]{"Hello, World, from the Object[] call method",new Integer(2)});
+        
+        // with directCalls these go past MAX_CALL_DEPTH nested calls and return somewhere other than after the jal
+        if(rt.call("depth",1000) != 1000) throw new Error("depth(1000) returned the wrong value");
+        if(rt.call("tailtwice",20) != 42) throw new Error("tailtwice(20) returned the wrong value");
+        if(rt.call("jumpout",300) != -1) throw new Error("jumpout(300) returned the wrong value");
+        if(rt.call("depth",10) != 10) throw new Error("depth(10) after longjmp() returned the wrong value");
+        System.out.println("depth(1000), tailtwice(20) and jumpout(300) returned properly");
         System.out.println("== End of CallTest ==");
         
+        System.out.println("== Start of call context test ==");
+        callContextTest(rt);
+        System.out.println("== End of call context test ==");
+        
+        System.out.println("== Start of snapshot test ==");
+        snapshotTest();
+        System.out.println("== End of snapshot test ==");
+        
+        System.out.println("== Start of data test ==");
+        dataTest();
+        System.out.println("== End of data test ==");
+        
+        System.out.println("== Start of reset test ==");
+        resetTest();
+        System.out.println("== End of reset test ==");
+        
         rt.execute();
         System.exit(rt.exitStatus());
     }
     
+    private static void callContextTest(final Runtime rt) throws Exception {
+        // contexts share the fd table, a descriptor added through one can be used from another
+        Runtime c1 = rt.newCallContext(64*1024);
+        Runtime c2 = rt.newCallContext(64*1024);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int fd = c1.addFD(new Runtime.InputOutputStreamFD(null,bos));
+        int addr = c2.strdup("Hello, World, from another call context");
+        c2.call("writefd",fd,addr);
+        c2.free(addr);
+        c1.closeFD(fd);
+        System.out.println("Written to a shared fd: " + new String(bos.toByteArray()));
+        
+        // sumsquares() only uses its argument and stack so it can be called from several threads without locking
+        final int n = 1000;
+        final int expected = rt.call("sumsquares",n);
+        final String[] error = new String[1];
+        Thread[] threads = new Thread[4];
+        for(int i=0;i<threads.length;i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Runtime.Function f = rt.threadContext().lookupFunction("sumsquares");
+                        for(int j=0;j<10000;j++) {
+                            int ret = f.call(n);
+                            if(ret != expected) throw new Runtime.CallException("sumsquares returned " + ret + " expected " + expected);
+                        }
+                    } catch(Runtime.CallException e) {
+                        synchronized(error) { error[0] = e.getMessage(); }
+                    } finally {
+                        rt.releaseThreadContext();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(int i=0;i<threads.length;i++) threads[i].join();
+        if(error[0] != null) throw new Error("Concurrent calls failed: " + error[0]);
+        System.out.println(threads.length + " threads called sumsquares(" + n + ") = " + expected + " concurrently");
+        
+        // a function that exits only ends its context, the process and its fds carry on
+        Runtime c3 = rt.newCallContext(64*1024);
+        try {
+            c3.call("quit",7);
+            throw new Error("quit() returned");
+        } catch(Runtime.CallException e) {
+            System.out.println("quit() in a call context: " + e.getMessage());
+        }
+        if(rt.getState() != Runtime.PAUSED) throw new Error("the process exited with its call context");
+        
+        // a fault ends the context too and says where it happened
+        Runtime c4 = rt.newCallContext(64*1024);
+        try {
+            c4.call("peek",16);
+            throw new Error("peek(16) didn't fault");
+        } catch(Runtime.CallException e) {
+            String where = c4.exitException == null ? null : c4.exitException.getMessage();
+            if(where == null || where.endsWith("(unknown)")) throw new Error("no location for the fault in peek(): " + where);
+            System.out.println("peek(16) in a call context faulted");
+        }
+        
+        // negative addresses fault (onePage with nullPointerCheck used to let them through)
+        Runtime c5 = rt.newCallContext(64*1024);
+        try {
+            c5.call("peek",-4);
+            throw new Error("peek(-4) didn't fault");
+        } catch(Runtime.CallException e) {
+            System.out.println("peek(-4) in a call context faulted");
+        }
+        addr = rt.strdup("stdout is still open after quit()\n");
+        if(rt.threadContext().call("writefd",1,addr) <= 0) throw new Error("stdout was closed by quit()");
+        rt.free(addr);
+    }
+    
+    private static void snapshotTest() throws Exception {
+        // a new instance restored from a snapshot carries on from there
+        Runtime r = (Runtime) Class.forName("tests.Test").newInstance();
+        r.start(new String[]{"Test","calltest"});
+        r.execute();
+        r.call("bump");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        r.snapshot(bos);
+        Runtime restored = (Runtime) Class.forName("tests.Test").newInstance();
+        restored.restore(bos.toByteArray());
+        int n = restored.call("bump");
+        if(n != 2) throw new Error("bump() returned " + n + " after restore()");
+        System.out.println("bump() returned 2 in a runtime restored from a " + bos.size() + " byte snapshot");
+    }
+    
+    private static void dataTest() throws Exception {
+        // every instance starts with the initialized data from the image, whichever way its pages were loaded
+        RuntimePool pool = new RuntimePool(Class.forName("tests.Test"),new String[]{"Test","calltest"},null,2);
+        Runtime r1 = pool.get();
+        Runtime r2 = pool.get();
+        if(r1.call("prime",15) != 53 || r1.call("cube",7) != 343) throw new Error("initialized data is wrong");
+        if(r1.call("setprime",0,97) != 2) throw new Error("setprime() returned the wrong old value");
+        if(r1.call("prime",0) != 97) throw new Error("write to initialized data was lost");
+        if(r2.call("prime",0) != 2) throw new Error("write to initialized data showed up in another instance");
+        Runtime r3 = (Runtime) Class.forName("tests.Test").newInstance();
+        r3.start(new String[]{"Test","calltest"});
+        r3.execute();
+        if(r3.call("prime",0) != 2 || r3.call("cube",7) != 343) throw new Error("initialized data is wrong in a new instance");
+        System.out.println("prime(15) = 53 and cube(7) = 343 in three instances");
+    }
+    
+    private static void resetTest() throws Exception {
+        // runtimes handed back to a pool go back to their reset point, so bump() counts from 1 again
+        RuntimePool pool = new RuntimePool(Class.forName("tests.Test"),new String[]{"Test","calltest"},null,1);
+        Runtime r = pool.get();
+        r.call("bump");
+        if(r.call("bump") != 2) throw new Error("bump() doesn't count");
+        pool.put(r);
+        if(pool.get() != r) throw new Error("the pool didn't reuse the runtime");
+        int n = r.call("bump");
+        if(n != 1) throw new Error("bump() returned " + n + " after reset()");
+        System.out.println("bump() returned 1 again after reset()");
+    }
+    
     private static class CustomOS extends OutputStream {
         public CustomOS() { }
         public void write(int b) {  byte[] a = new byte[1]; a[0] = (byte)(b&0xff); write(a,0,1); }
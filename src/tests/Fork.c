@@ -1,14 +1,67 @@
 #include <stdio.h>
 #include <unistd.h>
 #include <stdlib.h>
+#include <string.h>
 #include <sys/wait.h>
 
-int main() {
-    fprintf(stderr,"In the main process (pid: %d), about to fork\n",getpid());
+static volatile int vforked;
+
+/* Returns 0 if the child exited with status expected */
+static int checkchild(pid_t pid, int expected) {
+    int status;
+    if(waitpid(pid,&status,0) < 0) { perror("waitpid"); return 1; }
+    if(!WIFEXITED(status) || WEXITSTATUS(status) != expected) {
+        fprintf(stderr,"vfork()ed child exited with status %d (expected exit code %d)\n",status,expected);
+        return 1;
+    }
+    return 0;
+}
+
+/* vfork() followed by _exit() and (if we know where our binary is) by exec() */
+static int vforktest(const char *self) {
+    pid_t pid;
+    
+    fprintf(stderr,"vfork() and _exit()\n");
+    vforked = 0;
+    pid = vfork();
+    if(pid == 0) {
+        /* the child borrows our address space so the parent sees this once it resumes */
+        vforked = 1;
+        _exit(3);
+    }
+    if(pid < 0) { perror("vfork"); return 1; }
+    if(!vforked) { fprintf(stderr,"The parent resumed before the vfork()ed child exited\n"); return 1; }
+    if(checkchild(pid,3)) return 1;
+    
+    if(self != NULL) {
+        fprintf(stderr,"vfork() and exec() of %s\n",self);
+        pid = vfork();
+        if(pid == 0) {
+            execl(self,self,"vforkchild",(char*)NULL);
+            _exit(127);
+        }
+        if(pid < 0) { perror("vfork"); return 1; }
+        if(checkchild(pid,5)) return 1;
+    }
+    
+    fprintf(stderr,"vfork() tests passed\n");
+    return 0;
+}
+
+int main(int argc, char **argv) {
     pid_t pid;
     int status;
     int i;
     
+    if(argc > 1 && strcmp(argv[1],"vforkchild") == 0) {
+        fprintf(stderr,"In the exec()ed vfork child (pid: %d)\n",getpid());
+        _exit(5);
+    }
+    /* Fork vfork [path to this binary] just runs the vfork() tests */
+    if(argc > 1 && strcmp(argv[1],"vfork") == 0) return vforktest(argc > 2 ? argv[2] : NULL);
+    
+    fprintf(stderr,"In the main process (pid: %d), about to fork\n",getpid());
+    
     pid = fork();
     switch(pid) {
         case -1: perror("fork"); break;
@@ -55,5 +108,5 @@ int main() {
     }
     for(i=0;i<10;i++) fprintf(stderr,"Waited on %d\n",waitpid(-1,NULL,0));
     
-    return 0;
+    return vforktest(NULL);
 }
@@ -12,6 +12,7 @@
 #include <dirent.h>
 #include <wchar.h>
 #include <math.h>
+#include <setjmp.h>
 
 char *user_info[1024];
 
@@ -253,3 +254,91 @@ void backinmips()  __attribute__((section(".text")));
 void backinmips() {
     fprintf(stderr,"In backinmips() in mips\n");
 }
+
+/* Only uses its argument and the stack so call contexts can call it concurrently without locking */
+int sumsquares(int n)  __attribute__((section(".text")));
+int sumsquares(int n) {
+    int i, total = 0;
+    for(i=1;i<=n;i++) total += i*i;
+    return total;
+}
+
+int writefd(int fd, const char *string)  __attribute__((section(".text")));
+int writefd(int fd, const char *string) {
+    return write(fd,string,strlen(string));
+}
+
+/* Deep recursion, tail calls and longjmp all return somewhere other than where a direct call expects */
+volatile int calldepth;
+
+int depth(int n)  __attribute__((section(".text"),noinline));
+int depth(int n) {
+    int r;
+    if(n == 0) return 0;
+    r = depth(n-1);
+    calldepth = r; /* not a tail call */
+    return r + 1;
+}
+
+int twice(int n)  __attribute__((section(".text"),noinline));
+int twice(int n) {
+    return n*2;
+}
+
+int tailtwice(int n)  __attribute__((section(".text")));
+int tailtwice(int n) {
+    return twice(n+1);
+}
+
+static jmp_buf bailout;
+
+int bail(int n)  __attribute__((section(".text"),noinline));
+int bail(int n) {
+    if(n == 0) longjmp(bailout,1);
+    calldepth = n;
+    return bail(n-1) + 1;
+}
+
+int jumpout(int n)  __attribute__((section(".text")));
+int jumpout(int n) {
+    if(setjmp(bailout)) return -calldepth;
+    return bail(n);
+}
+
+int counter;
+
+int bump()  __attribute__((section(".text")));
+int bump() {
+    return ++counter;
+}
+
+/* Initialized data lands in writable and read-only data pages, which dataResource maps from the class's resource */
+int primes[] = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53 };
+const int cubes[] = { 0, 1, 8, 27, 64, 125, 216, 343 };
+
+int prime(int i)  __attribute__((section(".text")));
+int prime(int i) {
+    return primes[i];
+}
+
+int setprime(int i, int n)  __attribute__((section(".text")));
+int setprime(int i, int n) {
+    int old = primes[i];
+    primes[i] = n;
+    return old;
+}
+
+int cube(int i)  __attribute__((section(".text")));
+int cube(int i) {
+    return cubes[i];
+}
+
+int peek(int addr)  __attribute__((section(".text")));
+int peek(int addr) {
+    return *(volatile int*)addr;
+}
+
+int quit(int status)  __attribute__((section(".text")));
+int quit(int status) {
+    _exit(status);
+}
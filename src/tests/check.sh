@@ -156,6 +156,47 @@ $JAVA tests.GCTest
 
 fi
 
+if [ ! -e .skipfork ]; then
+
+echo "Running vfork() tests..."
+# the exec() case runs Fork.mips through the RuntimeCompiler, which needs classgen
+$JAVA -cp "$CLASSPATH:../upstream/build/classgen/build" tests.Fork vfork ../build/tests/Fork.mips
+echo "vfork() works properly!"
+
+fi
+
+if [ ! -e .skipoptions ]; then
+
+echo "Running CallTest against Test compiled with different compiler options..."
+calltest_with() {
+	rm -rf options
+	mkdir options
+	$JAVA -cp "$CLASSPATH:../upstream/build/classgen/build" org.ibex.nestedvm.Compiler -outformat class -d options -o "$1" tests.Test ../build/tests/Test.mips
+	$JAVA -cp "options:$CLASSPATH" tests.CallTest 1 2 3 4 5 6 > options.out
+	echo "CallTest passed with $1"
+}
+calltest_with functionMethods
+calltest_with functionMethods,maxInsnPerFunction=16
+calltest_with directCalls
+calltest_with directCalls,functionMethods
+# Test's main() without "calltest" never reaches the functions CallTest calls, so they all get moved out of the way
+$JAVA -Dnestedvm.profile=Test.profile org.ibex.nestedvm.Interpreter ../build/tests/Test.mips "arg 1" > /dev/null
+calltest_with profile=Test.profile
+calltest_with functionMethods,profile=Test.profile
+calltest_with textShards=4
+calltest_with textShards=4,directCalls,functionMethods
+calltest_with dataResource
+calltest_with dataResource,offHeap
+calltest_with memorySize=64m,nullPointerCheck
+calltest_with offHeap
+calltest_with offHeap,directCalls
+# lazyText only applies to the RuntimeCompiler, run Test's own main() through it
+$JAVA -cp "$CLASSPATH:../upstream/build/classgen/build" org.ibex.nestedvm.RuntimeCompiler -o textShards=4,lazyText ../build/tests/Test.mips "arg 1" > options.out
+echo "Test passed with textShards=4,lazyText"
+echo "Compiler options work properly!"
+
+fi
+
 if [ ! -e .busybox -a -e ../build/tests/BusyBox.class ]; then
 	echo "Running busybox's md5sum command on some ttfs"
 	$JAVA tests.BusyBox ash -c "md5sum mspack/*.ttf > md5.1"